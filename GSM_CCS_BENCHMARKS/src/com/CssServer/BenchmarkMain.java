@@ -0,0 +1,34 @@
+package com.CssServer;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of the server.
+ *
+ * <p>
+ * Every benchmark reports its throughput, and its allocation per operation
+ * with the GC profiler (gc.alloc.rate.norm). The arguments are those of the
+ * JMH command line: a regular expression selects the benchmarks, e.g.
+ * "Json", and "-rf json -rff baseline.json" saves the results, to compare
+ * a change against them.
+ */
+public class BenchmarkMain {
+	public static final String BENCHMARKS = "com\\.CssServer\\..*Benchmark";
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		OptionsBuilder builder = new OptionsBuilder();
+		builder.parent(commandLine);
+		if (commandLine.getIncludes().isEmpty()) {
+			builder.include(BENCHMARKS);
+		}
+		Options options = builder.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,167 @@
+package com.CssServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The Database methods, against a temporary SQLite file.
+ *
+ * <p>
+ * The tables are filled with memberCount users spread over GROUP_COUNT
+ * groups before each trial. The reads are served by the cache; the
+ * synchronous writes wait for their commit, so they measure the latency of
+ * the BatchWriter. The additions are removed in the same operation, so the
+ * tables keep their size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DatabaseBenchmark {
+	public static final int GROUP_COUNT = 100;
+
+	@Param({ "10000" })
+	int memberCount;
+
+	File databaseFile;
+	Database database;
+	GroupNameEntry[] groups;
+	String[] userids;
+	GroupNameEntry addedGroup;
+	// next user or group read or written, the benchmark runs on one thread
+	int next = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, ClassNotFoundException, InterruptedException {
+		databaseFile = File.createTempFile("ccs-benchmark", ".db");
+		database = new Database(databaseFile.getPath());
+		database.createGroupNameTable();
+		database.createMembershipTable();
+
+		List<DatabaseWrite> writes = new ArrayList<DatabaseWrite>();
+		groups = new GroupNameEntry[GROUP_COUNT];
+		for (int i = 0; i < groups.length; i++) {
+			groups[i] = new GroupNameEntry("group" + i, -90.0 + i, 180.0 - i);
+			writes.add(database.queueAddEntryToGroupNameTable(groups[i]));
+		}
+		userids = new String[memberCount];
+		for (int i = 0; i < userids.length; i++) {
+			userids[i] = "user" + i;
+			writes.add(database.queueAddEntryToMembershipTable(new MembershipEntry(userids[i],
+					groups[i % groups.length])));
+		}
+		for (DatabaseWrite write : writes) {
+			if (!write.await()) {
+				throw new IllegalStateException("Failed to fill the tables");
+			}
+		}
+		addedGroup = new GroupNameEntry("addedGroup", 0.0, 0.0);
+	}
+
+	/**
+	 * Writes the buffered updates, so that an iteration doesn't pay for the
+	 * previous one.
+	 */
+	@TearDown(Level.Iteration)
+	public void flush() {
+		database.flushMembershipUpdates();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		database.close();
+		String path = databaseFile.getPath();
+		databaseFile.delete();
+		new File(path + "-wal").delete();
+		new File(path + "-shm").delete();
+	}
+
+	@Benchmark
+	public MembershipEntry getMembership() {
+		return database.getMembership(nextUserid());
+	}
+
+	@Benchmark
+	public GroupNameEntry getGroup() {
+		return database.getGroup(nextGroup().name);
+	}
+
+	@Benchmark
+	public Vector<String> getMembersOfGroup() {
+		return database.getMembersOfGroup(nextGroup().name);
+	}
+
+	@Benchmark
+	public Vector<GroupNameEntry> getGroupNameTableEntries() {
+		return database.getGroupNameTableEntries();
+	}
+
+	@Benchmark
+	public Vector<MembershipEntry> getMembershipTableEntries() {
+		return database.getMembershipTableEntries();
+	}
+
+	@Benchmark
+	public boolean addAndRemoveGroup() {
+		return database.addEntryToGroupNameTable(addedGroup)
+				& database.removeEntryFromGroupNameTable(addedGroup);
+	}
+
+	@Benchmark
+	public boolean addAndRemoveMembership() {
+		return database.addEntryToMembershipTable(new MembershipEntry("addedUser", nextGroup()))
+				& database.removeEntryFromMembershipTable("addedUser");
+	}
+
+	@Benchmark
+	public boolean updateMembership() {
+		GroupNameEntry group = nextGroup();
+		return database.updateEntryOfMembershipTable(nextUserid(), group.name, group.latitude,
+				group.longitude);
+	}
+
+	@Benchmark
+	public boolean bufferUpdateMembership() {
+		GroupNameEntry group = nextGroup();
+		return database.bufferUpdateEntryOfMembershipTable(nextUserid(), group.name,
+				group.latitude, group.longitude);
+	}
+
+	/**
+	 * Reloads the cache from the Membership table, as on a start without a
+	 * snapshot.
+	 */
+	@Benchmark
+	public void loadMembershipTable() {
+		database.createMembershipTable();
+	}
+
+	private String nextUserid() {
+		next = (next + 1) % userids.length;
+		return userids[next];
+	}
+
+	private GroupNameEntry nextGroup() {
+		return groups[next % groups.length];
+	}
+}
@@ -0,0 +1,708 @@
+package com.CssServer;
+
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ServerSocketFactory;
+import javax.net.ssl.SSLServerSocketFactory;
+
+import org.json.simple.JSONValue;
+
+/**
+ * A local stand-in of CCS, to load-test a CcsServer.
+ *
+ * <p>
+ * It speaks enough XMPP for Smack: the stream features, a SASL PLAIN login
+ * accepting any credentials, and the resource binding. The stanzas are
+ * split without an XML parser, so it only understands what Smack sends.
+ *
+ * <p>
+ * Every downstream message is answered after a random delay between the
+ * minimum and the maximum reply delay: a NACK with one of the NACK errors
+ * for a nackRatio of them, an ACK otherwise. After a drainingRatio of them,
+ * the connection also gets a CONNECTION_DRAINING control message and is
+ * closed DRAIN_TIMEOUT_MILLIS later. Upstream data messages are sent at
+ * upstreamRate over the open connections, and the time until the server
+ * ACKs them is measured.
+ *
+ * <p>
+ * The stanzas are queued to a writer thread per connection, which flushes
+ * once per batch: the timers and the readers never wait on a socket, so
+ * the fake doesn't add its own latency to the one measured by the
+ * LoadDriver.
+ *
+ * <p>
+ * The settings default to the com.CssServer.fakeCcs.* system properties. A
+ * CcsServer connects to it with setCcsEndpoint(host, port, false), or with
+ * -Dcom.CssServer.ccsHost, -Dcom.CssServer.ccsPort and
+ * -Dcom.CssServer.ccsInsecure=true.
+ */
+public class FakeCcsServer {
+	private static final Logger logger = Logger.getLogger(FakeCcsServer.class.getName());
+	public static final int PORT = Integer.getInteger("com.CssServer.fakeCcs.port",
+			CcsServer.GCM_PORT);
+	public static final int UPSTREAM_RATE = Integer.getInteger(
+			"com.CssServer.fakeCcs.upstreamRate", 100);
+	public static final double NACK_RATIO = Double.parseDouble(System.getProperty(
+			"com.CssServer.fakeCcs.nackRatio", "0.01"));
+	public static final double DRAINING_RATIO = Double.parseDouble(System.getProperty(
+			"com.CssServer.fakeCcs.drainingRatio", "0"));
+	public static final String[] NACK_ERRORS = System.getProperty(
+			"com.CssServer.fakeCcs.nackErrors", "SERVICE_UNAVAILABLE,DEVICE_UNREGISTERED")
+			.split(",");
+	public static final long MIN_REPLY_DELAY_MILLIS = Long.getLong(
+			"com.CssServer.fakeCcs.minReplyDelayMillis", 1);
+	public static final long MAX_REPLY_DELAY_MILLIS = Long.getLong(
+			"com.CssServer.fakeCcs.maxReplyDelayMillis", 20);
+	public static final long UPSTREAM_TICK_MILLIS = 10;
+	public static final long DRAIN_TIMEOUT_MILLIS = 5000;
+	public static final long STATISTICS_INTERVAL_MILLIS = 10000;
+	// number of distinct devices sending the upstream messages
+	public static final int DEVICES = 10000;
+	public static final int LATENCY_SAMPLES = 1 << 20;
+
+	private static final String STREAM_HEADER = "<?xml version='1.0' encoding='UTF-8'?>"
+			+ "<stream:stream xmlns:stream=\"http://etherx.jabber.org/streams\""
+			+ " xmlns=\"jabber:client\" from=\"" + CcsServer.GCM_SERVER + "\" version=\"1.0\" id=\"";
+	private static final String SASL_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-sasl";
+	private static final String BIND_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-bind";
+	private static final String LOGIN_FEATURES = "<stream:features><mechanisms xmlns=\""
+			+ SASL_NAMESPACE + "\"><mechanism>PLAIN</mechanism></mechanisms></stream:features>";
+	private static final String SESSION_FEATURES = "<stream:features><bind xmlns=\""
+			+ BIND_NAMESPACE + "\"/><session xmlns=\"urn:ietf:params:xml:ns:xmpp-session\"/>"
+			+ "</stream:features>";
+	private static final String GCM_PREFIX = "<message><gcm xmlns=\"" + CcsServer.GCM_NAMESPACE
+			+ "\">";
+	private static final String GCM_SUFFIX = "</gcm></message>";
+	private static final String CONNECTION_DRAINING = "{\"message_type\":\"control\","
+			+ "\"control_type\":\"CONNECTION_DRAINING\"}";
+
+	/**
+	 * An upstream message waiting for its ACK.
+	 */
+	private static class SentUpstream {
+		final Session session;
+		final long sentAt;
+
+		SentUpstream(Session session, long sentAt) {
+			this.session = session;
+			this.sentAt = sentAt;
+		}
+	}
+
+	/**
+	 * One client connection.
+	 */
+	private class Session implements Runnable {
+		final int id;
+		final Socket socket;
+		// writer thread only
+		final Writer out;
+		final BlockingQueue<String> outbox = new LinkedBlockingQueue<String>();
+		Thread writer;
+		// reader thread only
+		String jid = null;
+		int streams = 0;
+		// bound to a resource, taking upstream messages
+		volatile boolean bound = false;
+		volatile boolean draining = false;
+
+		Session(int id, Socket socket) throws IOException {
+			this.id = id;
+			this.socket = socket;
+			this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+					StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public void run() {
+			try {
+				StanzaReader in = new StanzaReader(new InputStreamReader(socket.getInputStream(),
+						StandardCharsets.UTF_8));
+				String stanza;
+				while ((stanza = in.next()) != null) {
+					handle(stanza);
+				}
+			} catch (IOException e) {
+				if (running && !socket.isClosed()) {
+					logger.log(Level.INFO, "Connection " + id + " failed", e);
+				}
+			} finally {
+				close();
+			}
+		}
+
+		private void handle(String stanza) {
+			if (stanza.startsWith("<stream:stream")) {
+				send(STREAM_HEADER + id + "-" + streams++ + "\">"
+						+ (jid == null ? LOGIN_FEATURES : SESSION_FEATURES));
+			} else if (stanza.startsWith("<auth")) {
+				jid = login(textOf(stanza, "auth"));
+				send("<success xmlns=\"" + SASL_NAMESPACE + "\"/>");
+			} else if (stanza.startsWith("<iq")) {
+				handleIq(stanza);
+			} else if (stanza.startsWith("<message")) {
+				String json = textOf(stanza, "gcm");
+				if (json != null) {
+					received(this, unescape(json));
+				}
+			}
+			// presences are ignored
+		}
+
+		private void handleIq(String stanza) {
+			String type = attribute(stanza, "type");
+			if (!"get".equals(type) && !"set".equals(type)) {
+				return;
+			}
+			String iqId = attribute(stanza, "id");
+			if (stanza.contains(BIND_NAMESPACE)) {
+				String resource = textOf(stanza, "resource");
+				send("<iq type=\"result\" id=\"" + iqId + "\"><bind xmlns=\"" + BIND_NAMESPACE
+						+ "\"><jid>" + jid + "/" + (resource != null ? resource : "fake" + id)
+						+ "</jid></bind></iq>");
+				bound = true;
+			} else {
+				// the session, and whatever else is asked, succeeds
+				send("<iq type=\"result\" id=\"" + iqId + "\"/>");
+			}
+		}
+
+		void sendJson(String json) {
+			send(GCM_PREFIX + escape(json) + GCM_SUFFIX);
+		}
+
+		/**
+		 * Queues a stanza for the writer thread.
+		 */
+		void send(String xml) {
+			if (!socket.isClosed()) {
+				outbox.offer(xml);
+			}
+		}
+
+		/**
+		 * Writes the queued stanzas until the connection is closed.
+		 */
+		void write() {
+			List<String> batch = new ArrayList<String>();
+			try {
+				while (!socket.isClosed()) {
+					batch.add(outbox.take());
+					outbox.drainTo(batch);
+					for (String xml : batch) {
+						out.write(xml);
+					}
+					out.flush();
+					batch.clear();
+				}
+			} catch (IOException e) {
+				// the reader sees it too
+			} catch (InterruptedException e) {
+				// closed
+			} finally {
+				close();
+			}
+		}
+
+		/**
+		 * Announces the connection is draining, and closes it after
+		 * DRAIN_TIMEOUT_MILLIS if the client doesn't.
+		 */
+		void drain() {
+			if (draining) {
+				return;
+			}
+			draining = true;
+			drainings.incrementAndGet();
+			sendJson(CONNECTION_DRAINING);
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					close();
+				}
+			}, DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+
+		void close() {
+			if (!sessions.remove(this)) {
+				return;
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closed anyway
+			}
+			writer.interrupt();
+			// the ACKs of the upstream messages sent on it won't come
+			Iterator<SentUpstream> iterator = upstreamSentAt.values().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().session == this) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Splits the XML stream of a client into its top-level elements.
+	 */
+	private static class StanzaReader {
+		private final Reader in;
+		private final char[] buffer = new char[8192];
+		private int position = 0;
+		private int limit = 0;
+		private final StringBuilder stanza = new StringBuilder();
+
+		StanzaReader(Reader in) {
+			this.in = in;
+		}
+
+		/**
+		 * Returns the next element, or the stream header.
+		 *
+		 * @return null at the end of the stream.
+		 */
+		String next() throws IOException {
+			stanza.setLength(0);
+			int depth = 0;
+			int c;
+			while ((c = read()) != -1) {
+				if (c != '<') {
+					// whitespace between the stanzas is a keep-alive
+					if (depth > 0) {
+						stanza.append((char) c);
+					}
+					continue;
+				}
+				int start = stanza.length();
+				stanza.append('<');
+				readTag();
+				char kind = stanza.charAt(start + 1);
+				if (kind == '?') {
+					stanza.setLength(start);
+				} else if (kind == '/') {
+					if (depth == 0) {
+						// </stream:stream>
+						return null;
+					}
+					depth--;
+				} else if (depth == 0 && stanza.lastIndexOf("<stream:stream", 0) == 0) {
+					return stanza.toString();
+				} else if (stanza.charAt(stanza.length() - 2) != '/') {
+					depth++;
+				}
+				if (depth == 0 && stanza.length() > 0) {
+					return stanza.toString();
+				}
+			}
+			return null;
+		}
+
+		private void readTag() throws IOException {
+			char quote = 0;
+			int c;
+			while ((c = read()) != -1) {
+				stanza.append((char) c);
+				if (quote != 0) {
+					if (c == quote) {
+						quote = 0;
+					}
+				} else if (c == '"' || c == '\'') {
+					quote = (char) c;
+				} else if (c == '>') {
+					return;
+				}
+			}
+			throw new EOFException("Unterminated tag");
+		}
+
+		private int read() throws IOException {
+			if (position == limit) {
+				limit = in.read(buffer);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					return -1;
+				}
+			}
+			return buffer[position++];
+		}
+	}
+
+	private final int port;
+	private boolean secure = false;
+	private volatile int upstreamRate = UPSTREAM_RATE;
+	private volatile double nackRatio = NACK_RATIO;
+	private volatile double drainingRatio = DRAINING_RATIO;
+	private volatile String[] nackErrors = NACK_ERRORS;
+	private volatile long minReplyDelayMillis = MIN_REPLY_DELAY_MILLIS;
+	private volatile long maxReplyDelayMillis = MAX_REPLY_DELAY_MILLIS;
+	private volatile boolean running = false;
+	private ServerSocket serverSocket;
+	private ScheduledExecutorService executor;
+	private final Set<Session> sessions = Collections
+			.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+	private final AtomicInteger nextSessionId = new AtomicInteger();
+	// executor thread only
+	private double upstreamCredit = 0;
+	private long nextUpstreamId = 0;
+	// the upstream messages waiting for their ACK, by message_id
+	private final ConcurrentHashMap<String, SentUpstream> upstreamSentAt = new ConcurrentHashMap<String, SentUpstream>();
+	private final LatencyRecorder upstreamAckLatencies = new LatencyRecorder(LATENCY_SAMPLES);
+	private final AtomicLong logins = new AtomicLong();
+	private final AtomicLong downstream = new AtomicLong();
+	private final AtomicLong acks = new AtomicLong();
+	private final AtomicLong nacks = new AtomicLong();
+	private final AtomicLong drainings = new AtomicLong();
+	private final AtomicLong upstream = new AtomicLong();
+
+	/**
+	 * Creates the server. It listens once start() is called.
+	 *
+	 * @param port
+	 *            The port to listen on, 0 for any free port.
+	 */
+	public FakeCcsServer(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Listens over TLS, with the key store of the javax.net.ssl.keyStore
+	 * system property. Must be called before start().
+	 */
+	public void setSecure(boolean secure) {
+		this.secure = secure;
+	}
+
+	/**
+	 * Sets the number of upstream messages sent per second, over all the
+	 * connections.
+	 */
+	public void setUpstreamRate(int messagesPerSecond) {
+		upstreamRate = messagesPerSecond;
+	}
+
+	/**
+	 * Sets the proportions of the replies to the downstream messages.
+	 *
+	 * @param nackRatio
+	 *            Proportion of the messages NACKed, the others are ACKed.
+	 * @param drainingRatio
+	 *            Proportion of the messages followed by a CONNECTION_DRAINING.
+	 */
+	public void setReplyRatios(double nackRatio, double drainingRatio) {
+		this.nackRatio = nackRatio;
+		this.drainingRatio = drainingRatio;
+	}
+
+	/**
+	 * Sets the errors of the NACKs, picked at random.
+	 */
+	public void setNackErrors(String... errors) {
+		nackErrors = errors;
+	}
+
+	/**
+	 * Sets the bounds of the delay before a downstream message is answered.
+	 */
+	public void setReplyDelay(long minMillis, long maxMillis) {
+		minReplyDelayMillis = minMillis;
+		maxReplyDelayMillis = maxMillis;
+	}
+
+	/**
+	 * Starts listening and sending the upstream messages.
+	 */
+	public void start() throws IOException {
+		ServerSocketFactory factory = secure ? SSLServerSocketFactory.getDefault()
+				: ServerSocketFactory.getDefault();
+		serverSocket = factory.createServerSocket(port);
+		running = true;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "fake-ccs");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sendUpstream();
+				} catch (RuntimeException e) {
+					logger.log(Level.SEVERE, "Failed to send the upstream messages", e);
+				}
+			}
+		}, UPSTREAM_TICK_MILLIS, UPSTREAM_TICK_MILLIS, TimeUnit.MILLISECONDS);
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "fake-ccs-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Closes the connections and stops listening.
+	 */
+	public void stop() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to close the server socket", e);
+		}
+		executor.shutdownNow();
+		for (Session session : sessions) {
+			session.close();
+		}
+	}
+
+	/**
+	 * Returns the port listened on.
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Returns the counts of the messages exchanged, and the percentiles of
+	 * the time until the upstream messages were ACKed.
+	 */
+	public String getStatistics() {
+		return "logins=" + logins.get() + " downstream=" + downstream.get() + " acks="
+				+ acks.get() + " nacks=" + nacks.get() + " drainings=" + drainings.get()
+				+ " upstream=" + upstream.get() + " upstreamAcks="
+				+ upstreamAckLatencies.getCount() + ", upstream ACK latency: "
+				+ upstreamAckLatencies.summarize();
+	}
+
+	private void accept() {
+		while (running) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				final Session session = new Session(nextSessionId.getAndIncrement(), socket);
+				session.writer = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						session.write();
+					}
+				}, "fake-ccs-" + session.id + "-writer");
+				session.writer.setDaemon(true);
+				sessions.add(session);
+				session.writer.start();
+				Thread reader = new Thread(session, "fake-ccs-" + session.id);
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				if (running) {
+					logger.log(Level.SEVERE, "Failed to accept a connection", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the JID of a SASL PLAIN login, whatever its password.
+	 */
+	private String login(String credentials) {
+		logins.incrementAndGet();
+		String user = null;
+		try {
+			// authorization id, NUL, authentication id, NUL, password
+			String[] fields = new String(Base64.getDecoder().decode(credentials.trim()),
+					StandardCharsets.UTF_8).split("\u0000");
+			user = fields.length > 1 ? fields[1] : null;
+		} catch (IllegalArgumentException | NullPointerException e) {
+			logger.log(Level.WARNING, "Invalid credentials " + credentials, e);
+		}
+		if (user == null || user.isEmpty()) {
+			user = CcsServer.GCM_SENDER_ID;
+		}
+		return user.indexOf('@') >= 0 ? user : user + "@" + CcsServer.GCM_SERVER;
+	}
+
+	/**
+	 * Handles a message from a client: the ACK of an upstream message, or a
+	 * downstream message to answer.
+	 */
+	private void received(Session session, String json) {
+		Map<?, ?> message = (Map<?, ?>) JSONValue.parse(json);
+		if (message == null) {
+			logger.warning("Invalid JSON " + json);
+			return;
+		}
+		String messageId = String.valueOf(message.get("message_id"));
+		Object type = message.get("message_type");
+		if ("ack".equals(type) || "nack".equals(type)) {
+			SentUpstream sent = upstreamSentAt.remove(messageId);
+			if (sent != null) {
+				upstreamAckLatencies.record(System.nanoTime() - sent.sentAt);
+			}
+			return;
+		}
+		downstream.incrementAndGet();
+		reply(session, String.valueOf(message.get("to")), messageId);
+	}
+
+	private void reply(final Session session, String to, String messageId) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		final boolean nack = random.nextDouble() < nackRatio;
+		final String json;
+		if (nack) {
+			String[] errors = nackErrors;
+			json = "{\"message_type\":\"nack\",\"from\":\"" + JSONValue.escape(to)
+					+ "\",\"message_id\":\"" + JSONValue.escape(messageId) + "\",\"error\":\""
+					+ JSONValue.escape(errors[random.nextInt(errors.length)])
+					+ "\",\"error_description\":\"Fake CCS error\"}";
+		} else {
+			json = "{\"message_type\":\"ack\",\"from\":\"" + JSONValue.escape(to)
+					+ "\",\"message_id\":\"" + JSONValue.escape(messageId) + "\"}";
+		}
+		final boolean drain = random.nextDouble() < drainingRatio;
+		long min = minReplyDelayMillis;
+		long max = maxReplyDelayMillis;
+		long delay = max > min ? min + random.nextLong(max - min + 1) : min;
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				(nack ? nacks : acks).incrementAndGet();
+				session.sendJson(json);
+				if (drain) {
+					session.drain();
+				}
+			}
+		};
+		if (delay > 0) {
+			executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+		} else {
+			task.run();
+		}
+	}
+
+	private void sendUpstream() {
+		List<Session> open = new ArrayList<Session>();
+		for (Session session : sessions) {
+			if (session.bound && !session.draining) {
+				open.add(session);
+			}
+		}
+		if (open.isEmpty()) {
+			return;
+		}
+		upstreamCredit += upstreamRate * UPSTREAM_TICK_MILLIS / 1000.0;
+		int count = (int) upstreamCredit;
+		upstreamCredit -= count;
+		for (int i = 0; i < count; i++) {
+			long sequence = nextUpstreamId++;
+			String messageId = "fake-" + sequence;
+			String json = "{\"category\":\"com.CssServer.load\",\"data\":{\"sequence\":\""
+					+ sequence + "\"},\"message_id\":\"" + messageId + "\",\"from\":\"device-"
+					+ (sequence % DEVICES) + "\"}";
+			Session session = open.get((int) (sequence % open.size()));
+			upstreamSentAt.put(messageId, new SentUpstream(session, System.nanoTime()));
+			upstream.incrementAndGet();
+			session.sendJson(json);
+		}
+	}
+
+	/**
+	 * Returns the value of an attribute of the first tag of an element.
+	 */
+	private static String attribute(String element, String name) {
+		int end = element.indexOf('>');
+		for (char quote : new char[] { '"', '\'' }) {
+			int start = element.indexOf(" " + name + "=" + quote);
+			if (start >= 0 && start < end) {
+				start += name.length() + 3;
+				return element.substring(start, element.indexOf(quote, start));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the text of the first child element with the specified name.
+	 */
+	private static String textOf(String element, String name) {
+		int start = element.indexOf("<" + name);
+		while (start >= 0 && start + name.length() + 1 < element.length()) {
+			char next = element.charAt(start + name.length() + 1);
+			if (next == '>' || next == ' ' || next == '/') {
+				break;
+			}
+			start = element.indexOf("<" + name, start + 1);
+		}
+		if (start < 0) {
+			return null;
+		}
+		start = element.indexOf('>', start);
+		if (start < 0) {
+			return null;
+		}
+		if (element.charAt(start - 1) == '/') {
+			return "";
+		}
+		int end = element.indexOf("</" + name + ">", start);
+		return end < 0 ? null : element.substring(start + 1, end);
+	}
+
+	private static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	private static String unescape(String text) {
+		if (text.indexOf('&') < 0) {
+			return text;
+		}
+		return text.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+				.replace("&apos;", "'").replace("&amp;", "&");
+	}
+
+	/**
+	 * Runs the server on its own, with the settings of the system properties,
+	 * logging its statistics every STATISTICS_INTERVAL_MILLIS.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		FakeCcsServer server = new FakeCcsServer(PORT);
+		server.start();
+		logger.info("Fake CCS listening on port " + server.getPort());
+		while (true) {
+			Thread.sleep(STATISTICS_INTERVAL_MILLIS);
+			logger.info(server.getStatistics());
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.CssServer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.packet.Packet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering of the downstream stanzas.
+ *
+ * <p>
+ * toPacketXML() is what a send costs: the stanza is created and rendered
+ * once, the interceptor and the writer sharing the rendering.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class GcmPacketExtensionBenchmark {
+	// length of the "message" of the payload, 4096 being the limit of GCM
+	@Param({ "64", "3500" })
+	int messageLength;
+
+	String json;
+
+	@Setup
+	public void setUp() {
+		char[] message = new char[messageLength];
+		Arrays.fill(message, 'x');
+		Map<String, String> payload = new HashMap<String, String>();
+		payload.put("action", "group");
+		payload.put("message", new String(message));
+		json = CcsServer.createJsonMessage(JsonBenchmark.REGISTRATION_ID, "m-1", payload, null,
+				null, null);
+	}
+
+	@Benchmark
+	public String toXML() {
+		return new GcmPacketExtension(json).toXML();
+	}
+
+	@Benchmark
+	public Packet toPacket() {
+		return new GcmPacketExtension(json).toPacket();
+	}
+
+	@Benchmark
+	public String toPacketXML() {
+		return new GcmPacketExtension(json).toPacket().toXML();
+	}
+}
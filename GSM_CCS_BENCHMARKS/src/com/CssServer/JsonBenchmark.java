@@ -0,0 +1,96 @@
+package com.CssServer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding of the downstream messages and decoding of the upstream ones.
+ *
+ * <p>
+ * The upstream JSON is decoded the way the pipeline does it for every
+ * stanza received, see StreamingJsonDecoder. parseJsonObject() is the
+ * complete parse done for each stanza before it, kept as a reference.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class JsonBenchmark {
+	// a registration id is about 150 characters long
+	static final String REGISTRATION_ID = "APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx"
+			+ "2vBkkD1dbDYl1vF8Q8KXo6DkKzT9aB6dQeXWkFm8RzlOGHV1rZ93zEBDmoyu5Z3CN"
+			+ "vCwrHn7OzUPEvBuuIp7XM0oDvAj5RgYGCy2PMmvgHf1sxSAEflRmDkqAH0PI2CP";
+	static final String UPSTREAM_MESSAGE = "{\"category\":\"com.example.gsm\","
+			+ "\"data\":{\"action\":\"location\",\"latitude\":\"-5.5\",\"longitude\":\"6.6\"},"
+			+ "\"message_id\":\"m-4b1c3e0f-6a2d-4e8b-9c71-2f5d8a0b3e64\","
+			+ "\"from\":\"" + REGISTRATION_ID + "\"}";
+	static final String UPSTREAM_ACK = "{\"from\":\"" + REGISTRATION_ID + "\","
+			+ "\"message_id\":\"m-4b1c3e0f-6a2d-4e8b-9c71-2f5d8a0b3e64\","
+			+ "\"message_type\":\"ack\"}";
+
+	Map<String, String> payload;
+
+	@Setup
+	public void setUp() {
+		payload = new HashMap<String, String>();
+		payload.put("action", "group");
+		payload.put("group", "testGroup1");
+		payload.put("message", "Hello from the server");
+	}
+
+	@Benchmark
+	public String createJsonMessage() {
+		return CcsServer.createJsonMessage(REGISTRATION_ID, "m-1", payload, "sample", 10000L,
+				true);
+	}
+
+	@Benchmark
+	public String createJsonAck() {
+		return CcsServer.createJsonAck(REGISTRATION_ID, "m-1");
+	}
+
+	@Benchmark
+	public UpstreamMessage decodeMessage() throws ParseException {
+		UpstreamMessage message = new UpstreamMessage(null, UPSTREAM_MESSAGE);
+		StreamingJsonDecoder.decode(message);
+		return message;
+	}
+
+	@Benchmark
+	public UpstreamMessage decodeAck() throws ParseException {
+		UpstreamMessage message = new UpstreamMessage(null, UPSTREAM_ACK);
+		StreamingJsonDecoder.decode(message);
+		return message;
+	}
+
+	/**
+	 * Decodes a message and parses its payload, like a handler reading it.
+	 */
+	@Benchmark
+	public Map<String, String> decodeMessageData() throws ParseException {
+		UpstreamMessage message = new UpstreamMessage(null, UPSTREAM_MESSAGE);
+		StreamingJsonDecoder.decode(message);
+		return message.getData();
+	}
+
+	@Benchmark
+	public Object parseJsonObject() {
+		return JSONValue.parse(UPSTREAM_MESSAGE);
+	}
+}
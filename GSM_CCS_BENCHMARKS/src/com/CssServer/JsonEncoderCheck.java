@@ -0,0 +1,198 @@
+package com.CssServer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.json.simple.JSONValue;
+
+/**
+ * Checks that JsonEncoder writes the same JSON as json-simple, character for
+ * character.
+ *
+ * <p>
+ * Every message is encoded by CcsServer.createJsonMessage() and
+ * createJsonAck(), and by the HashMap and JSONValue.toJSONString() they were
+ * built with before JsonEncoder. The messages are a fixed set covering the
+ * optional fields and the escaped characters, then CASES random ones drawn
+ * with a fixed seed, so every run checks the same messages. The payload
+ * values are strings, nulls, numbers, booleans and nested maps.
+ *
+ * <p>
+ * Run com.CssServer.JsonEncoderCheck after a change to JsonEncoder. On a
+ * mismatch it prints the first ones and exits with status 1.
+ */
+public class JsonEncoderCheck {
+	public static final int CASES = Integer.getInteger("com.CssServer.check.cases", 5000);
+	public static final long SEED = Long.getLong("com.CssServer.check.seed", 20140601L);
+	private static final int MAX_REPORTED = 10;
+
+	// the characters json-simple escapes, and a few it doesn't
+	private static final String ALPHABET = "aZ09 _-:.,{}[]\"\\/\b\f\n\r\t"
+			+ "\u0000\u0001\u001F\u007F\u0085\u009F\u00A0\u00E9"
+			+ "\u2000\u2028\u20AC\u20FF\u2100\u4E2D\uD83D\uDE00";
+
+	private final Random random = new Random(SEED);
+	private int checked = 0;
+	private int mismatches = 0;
+
+	/**
+	 * Encodes a downstream message as CcsServer.createJsonMessage() did
+	 * before JsonEncoder.
+	 */
+	static String referenceMessage(String to, String messageId, Map<String, String> payload,
+			String collapseKey, Long timeToLive, Boolean delayWhileIdle) {
+		Map<String, Object> message = new HashMap<String, Object>();
+		message.put("to", to);
+		if (collapseKey != null) {
+			message.put("collapse_key", collapseKey);
+		}
+		if (timeToLive != null) {
+			message.put("time_to_live", timeToLive);
+		}
+		if (delayWhileIdle != null && delayWhileIdle) {
+			message.put("delay_while_idle", true);
+		}
+		message.put("message_id", messageId);
+		message.put("data", payload);
+		return JSONValue.toJSONString(message);
+	}
+
+	/**
+	 * Encodes an ACK as CcsServer.createJsonAck() did before JsonEncoder.
+	 */
+	static String referenceAck(String to, String messageId) {
+		Map<String, Object> message = new HashMap<String, Object>();
+		message.put("message_type", "ack");
+		message.put("to", to);
+		message.put("message_id", messageId);
+		return JSONValue.toJSONString(message);
+	}
+
+	void checkMessage(String to, String messageId, Map<String, String> payload,
+			String collapseKey, Long timeToLive, Boolean delayWhileIdle) {
+		compare(referenceMessage(to, messageId, payload, collapseKey, timeToLive, delayWhileIdle),
+				CcsServer.createJsonMessage(to, messageId, payload, collapseKey, timeToLive,
+						delayWhileIdle));
+	}
+
+	void checkAck(String to, String messageId) {
+		compare(referenceAck(to, messageId), CcsServer.createJsonAck(to, messageId));
+	}
+
+	private void compare(String expected, String actual) {
+		checked++;
+		if (!expected.equals(actual)) {
+			mismatches++;
+			if (mismatches <= MAX_REPORTED) {
+				System.out.println("Expected " + expected);
+				System.out.println("     got " + actual);
+			}
+		}
+	}
+
+	/**
+	 * Checks the fixed messages.
+	 */
+	void checkFixed() {
+		Map<String, String> payload = new HashMap<String, String>();
+		payload.put("message", "Hello");
+		payload.put("quote", "say \"hi\"");
+		payload.put("path", "a/b\\c");
+		payload.put("controls", "\b\f\n\r\t\u0000\u001F");
+		payload.put("ranges", "\u007F\u009F\u2000\u20FF");
+		payload.put("unicode", "\u00E9\u4E2D\uD83D\uDE00");
+		payload.put("empty", "");
+		payload.put("none", null);
+
+		checkMessage("device", "m-1", payload, null, null, null);
+		checkMessage("device", "m-2", payload, "collapse", 3600L, true);
+		checkMessage("device", "m-3", payload, "", 0L, false);
+		checkMessage("device", "m-4", new HashMap<String, String>(), null, -1L, null);
+		checkMessage("device", "m-5", null, null, null, true);
+		checkMessage(null, null, payload, null, Long.MAX_VALUE, null);
+		checkAck("device", "m-1");
+		checkAck("a/\"b\"", "\u2028");
+		checkAck(null, null);
+	}
+
+	/**
+	 * Checks CASES random messages and ACKs.
+	 */
+	void checkRandom() {
+		for (int i = 0; i < CASES; i++) {
+			checkMessage(maybeNull(randomString()), maybeNull(randomString()), randomPayload(),
+					random.nextBoolean() ? randomString() : null,
+					random.nextBoolean() ? Long.valueOf(random.nextInt(2419200)) : null,
+					random.nextInt(3) == 0 ? null : Boolean.valueOf(random.nextBoolean()));
+			checkAck(maybeNull(randomString()), maybeNull(randomString()));
+		}
+	}
+
+	private String maybeNull(String value) {
+		return random.nextInt(20) == 0 ? null : value;
+	}
+
+	private String randomString() {
+		int length = random.nextInt(13);
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return builder.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, String> randomPayload() {
+		if (random.nextInt(10) == 0) {
+			return null;
+		}
+		// the payloads handed in are not always strings only
+		return (Map<String, String>) (Map<?, ?>) randomMap(2);
+	}
+
+	private Map<String, Object> randomMap(int depth) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		int size = random.nextInt(7);
+		for (int i = 0; i < size; i++) {
+			map.put(randomString(), randomValue(depth));
+		}
+		return map;
+	}
+
+	private Object randomValue(int depth) {
+		switch (random.nextInt(12)) {
+		case 0:
+			return null;
+		case 1:
+			return Integer.valueOf(random.nextInt());
+		case 2:
+			return Long.valueOf(random.nextLong());
+		case 3:
+			return Double.valueOf(random.nextGaussian() * 1000);
+		case 4:
+			double[] specials = { Double.NaN, Double.POSITIVE_INFINITY, -0.0, 1e-9 };
+			return Double.valueOf(specials[random.nextInt(specials.length)]);
+		case 5:
+			return Float.valueOf(random.nextInt(2) == 0 ? Float.NaN : random.nextFloat());
+		case 6:
+			return Boolean.valueOf(random.nextBoolean());
+		case 7:
+			return depth > 0 ? randomMap(depth - 1) : randomString();
+		default:
+			return randomString();
+		}
+	}
+
+	public static void main(String[] args) {
+		JsonEncoderCheck check = new JsonEncoderCheck();
+		check.checkFixed();
+		check.checkRandom();
+		if (check.mismatches > 0) {
+			System.out.println(check.mismatches + " of " + check.checked
+					+ " messages differ from json-simple");
+			System.exit(1);
+		}
+		System.out.println("JsonEncoder matches json-simple on " + check.checked + " messages");
+	}
+}
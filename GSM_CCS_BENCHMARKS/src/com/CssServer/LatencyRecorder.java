@@ -0,0 +1,76 @@
+package com.CssServer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The latencies measured during a load test, for their percentiles.
+ *
+ * <p>
+ * Every sample is kept, up to the capacity; the ones recorded past it are
+ * only counted. Recording doesn't lock.
+ */
+class LatencyRecorder {
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private final AtomicLongArray samples;
+	private final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * @param capacity
+	 *            Number of samples kept.
+	 */
+	LatencyRecorder(int capacity) {
+		samples = new AtomicLongArray(capacity);
+	}
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param nanos
+	 *            The latency, in nanoseconds.
+	 */
+	void record(long nanos) {
+		int index = count.getAndIncrement();
+		if (index < samples.length()) {
+			samples.set(index, nanos);
+		}
+	}
+
+	/**
+	 * Returns the number of latencies recorded, including those not kept.
+	 */
+	int getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the percentiles of the latencies kept, in milliseconds.
+	 */
+	String summarize() {
+		int kept = Math.min(count.get(), samples.length());
+		if (kept == 0) {
+			return "no samples";
+		}
+		long[] sorted = new long[kept];
+		for (int i = 0; i < kept; i++) {
+			sorted[i] = samples.get(i);
+		}
+		Arrays.sort(sorted);
+		StringBuilder summary = new StringBuilder();
+		for (double percentile : PERCENTILES) {
+			int index = (int) Math.ceil(percentile / 100 * kept) - 1;
+			summary.append("p").append(percentile == (int) percentile
+					? Integer.toString((int) percentile) : Double.toString(percentile));
+			summary.append("=").append(millis(sorted[Math.max(index, 0)])).append(" ");
+		}
+		summary.append("max=").append(millis(sorted[kept - 1]));
+		summary.append(" (").append(kept).append(" samples)");
+		return summary.toString();
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.2fms", nanos / 1e6);
+	}
+}
@@ -0,0 +1,181 @@
+package com.CssServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.XMPPException;
+
+/**
+ * Measures a CcsServer end to end, against a FakeCcsServer.
+ *
+ * <p>
+ * The server sends MESSAGES downstream messages, at RATE per second, or as
+ * fast as OUTSTANDING unanswered messages allow if RATE is 0. The latency of
+ * a message runs from its submission to its ACK, retries included; the
+ * report gives its percentiles, the throughput, the failures by error, and
+ * the upstream messages handled meanwhile.
+ *
+ * <p>
+ * The fake CCS is started in-process with the com.CssServer.fakeCcs.*
+ * settings, unless com.CssServer.load.host names a running one. Run with
+ * -Dcom.CssServer.productionLogging=true, or every packet is logged.
+ */
+public class LoadDriver {
+	private static final Logger logger = CcsServer.logger;
+	public static final int MESSAGES = Integer.getInteger("com.CssServer.load.messages", 100000);
+	public static final int RATE = Integer.getInteger("com.CssServer.load.rate", 0);
+	public static final int CONNECTIONS = Integer.getInteger("com.CssServer.load.connections", 2);
+	public static final int OUTSTANDING = CONNECTIONS * CcsServer.CCS_MAX_IN_FLIGHT * 2;
+	public static final long TIMEOUT_MILLIS = Long.getLong("com.CssServer.load.timeoutMillis",
+			5 * 60 * 1000);
+
+	/**
+	 * A downstream message with its submission time.
+	 */
+	static class TimedMessage extends DownstreamMessage {
+		final long submittedAt = System.nanoTime();
+
+		TimedMessage(String messageId, String json) {
+			super(messageId, json);
+		}
+	}
+
+	/**
+	 * The server under test, counting the upstream messages it handles.
+	 */
+	static class LoadServer extends CcsServer {
+		final AtomicLong upstreamHandled = new AtomicLong();
+
+		LoadServer(String databaseFile) {
+			super(databaseFile);
+		}
+
+		@Override
+		public void handleIncomingDataMessage(UpstreamMessage message) {
+			upstreamHandled.incrementAndGet();
+		}
+	}
+
+	private final LatencyRecorder latencies = new LatencyRecorder(MESSAGES);
+	private final AtomicLong delivered = new AtomicLong();
+	private final ConcurrentHashMap<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+	private final Semaphore outstanding = new Semaphore(OUTSTANDING);
+	private final CountDownLatch answered = new CountDownLatch(MESSAGES);
+	private final DeliveryListener listener = new DeliveryListener() {
+		@Override
+		public void delivered(DownstreamMessage message) {
+			latencies.record(System.nanoTime() - ((TimedMessage) message).submittedAt);
+			delivered.incrementAndGet();
+			answered();
+		}
+
+		@Override
+		public void failed(DownstreamMessage message, String error) {
+			String key = error != null ? error : GroupSendProgress.NOT_SENT;
+			AtomicLong count = failures.get(key);
+			if (count == null) {
+				failures.putIfAbsent(key, new AtomicLong());
+				count = failures.get(key);
+			}
+			count.incrementAndGet();
+			answered();
+		}
+	};
+
+	private void answered() {
+		outstanding.release();
+		answered.countDown();
+	}
+
+	/**
+	 * Sends the messages and waits for their answers.
+	 */
+	void run(LoadServer server) throws InterruptedException {
+		Map<String, String> payload = new HashMap<String, String>();
+		payload.put("message", "Load test");
+		long start = System.nanoTime();
+		for (int i = 0; i < MESSAGES; i++) {
+			if (RATE > 0) {
+				long wait = start + (long) i * 1000000000L / RATE - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+			} else {
+				outstanding.acquire();
+			}
+			String messageId = server.getRandomMessageId();
+			TimedMessage message = new TimedMessage(messageId, CcsServer.createJsonMessage(
+					"device-" + (i % FakeCcsServer.DEVICES), messageId, payload, null, null, null));
+			message.listener = listener;
+			try {
+				server.pool.sendDownstream(message);
+			} catch (IllegalStateException e) {
+				message.failed(null);
+			}
+		}
+		boolean completed = answered.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(String.format("%d downstream messages in %.2fs: %.0f messages/s",
+				MESSAGES, seconds, MESSAGES / seconds));
+		if (!completed) {
+			System.out.println(answered.getCount() + " messages unanswered after "
+					+ TIMEOUT_MILLIS + "ms");
+		}
+		System.out.println("Delivered " + delivered.get() + ", failed " + failures);
+		System.out.println("ACK latency: " + latencies.summarize());
+		System.out.println("Upstream messages handled: " + server.upstreamHandled.get());
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (!CcsServer.PRODUCTION_LOGGING) {
+			logger.warning("Every packet is logged, run with "
+					+ "-Dcom.CssServer.productionLogging=true to measure the server alone");
+		}
+		FakeCcsServer fakeCcs = null;
+		String host = System.getProperty("com.CssServer.load.host");
+		int port;
+		if (host == null) {
+			fakeCcs = new FakeCcsServer(0);
+			fakeCcs.start();
+			host = "localhost";
+			port = fakeCcs.getPort();
+		} else {
+			port = Integer.getInteger("com.CssServer.load.port", CcsServer.GCM_PORT);
+		}
+
+		File databaseFile = File.createTempFile("ccs-load", ".db");
+		LoadServer server = new LoadServer(databaseFile.getPath());
+		try {
+			server.setCcsEndpoint(host, port, false);
+			server.setXmppDebuggerEnabled(false);
+			server.setConnectionPoolSize(CONNECTIONS);
+			server.connect(CcsServer.GCM_SENDER_ID + "@" + CcsServer.GCM_SERVER,
+					CcsServer.GCM_SERVER_KEY);
+			new LoadDriver().run(server);
+		} catch (XMPPException e) {
+			logger.severe("Failed to connect to " + host + ":" + port);
+			e.printStackTrace();
+		} finally {
+			server.disconnect();
+			if (fakeCcs != null) {
+				System.out.println("Fake CCS: " + fakeCcs.getStatistics());
+				fakeCcs.stop();
+			}
+			String path = databaseFile.getPath();
+			databaseFile.delete();
+			new File(path + CcsServer.SNAPSHOT_SUFFIX).delete();
+			new File(path + "-wal").delete();
+			new File(path + "-shm").delete();
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.CssServer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The message ids of CcsServer.getRandomMessageId().
+ *
+ * <p>
+ * getRandomMessageId() only checks the id of its MessageIdGenerator, and a
+ * CcsServer opens its database when it is created, so the generators are
+ * measured on their own. The ids are taken by every sending thread; the
+ * contended variant runs on 4 threads sharing the generator.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MessageIdBenchmark {
+	@Param({ "sequential", "uuid" })
+	String generator;
+
+	MessageIdGenerator messageIdGenerator;
+
+	@Setup
+	public void setUp() {
+		if ("uuid".equals(generator)) {
+			messageIdGenerator = new UUIDGenerator();
+		} else {
+			messageIdGenerator = new SequentialMessageIdGenerator(CcsServer.MESSAGE_ID_NODE);
+		}
+	}
+
+	@Benchmark
+	public String next() {
+		return messageIdGenerator.next();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public String nextContended() {
+		return messageIdGenerator.next();
+	}
+}
@@ -0,0 +1,120 @@
+package com.CssServer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Log handler moving the formatting and the I/O off the logging threads.
+ *
+ * <p>
+ * publish() only puts the record into a bounded ring buffer; a background
+ * thread hands the records over to the wrapped handler. A logging thread
+ * never waits for the disk: when the buffer is full the record is dropped,
+ * and the number of dropped records is logged once there is room again.
+ */
+class AsyncLogHandler extends Handler {
+	private final Handler target;
+	private final BlockingQueue<LogRecord> buffer;
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread writer;
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates the handler and starts its writer thread.
+	 *
+	 * @param target
+	 *            The handler doing the actual output, e.g. a FileHandler.
+	 * @param capacity
+	 *            Number of records the buffer holds.
+	 */
+	AsyncLogHandler(Handler target, int capacity) {
+		this.target = target;
+		this.buffer = new ArrayBlockingQueue<LogRecord>(capacity);
+		setLevel(target.getLevel());
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "ccs-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (closed || !isLoggable(record)) {
+			return;
+		}
+		// the caller must be found now, on the thread that logged
+		record.getSourceClassName();
+		if (!buffer.offer(record)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void flush() {
+		target.flush();
+	}
+
+	/**
+	 * Writes out the buffered records and closes the wrapped handler.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		writer.interrupt();
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		target.close();
+	}
+
+	/**
+	 * Returns the number of records dropped because the buffer was full.
+	 */
+	long getDroppedCount() {
+		return dropped.get();
+	}
+
+	private void write() {
+		while (true) {
+			LogRecord record;
+			try {
+				record = buffer.take();
+			} catch (InterruptedException e) {
+				// close() interrupts the writer, write out what is left
+				while ((record = buffer.poll()) != null) {
+					publishToTarget(record);
+				}
+				target.flush();
+				return;
+			}
+			long lost = dropped.getAndSet(0);
+			if (lost > 0) {
+				LogRecord warning = new LogRecord(Level.WARNING, "Log buffer full, "
+						+ lost + " log records dropped");
+				warning.setLoggerName(record.getLoggerName());
+				publishToTarget(warning);
+			}
+			publishToTarget(record);
+		}
+	}
+
+	private void publishToTarget(LogRecord record) {
+		try {
+			target.publish(record);
+		} catch (RuntimeException e) {
+			reportError("Unable to write a log record", e, ErrorManager.WRITE_FAILURE);
+		}
+	}
+}
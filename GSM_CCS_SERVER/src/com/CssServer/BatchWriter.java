@@ -0,0 +1,175 @@
+package com.CssServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The writer thread of the database, grouping the writes into transactions.
+ *
+ * <p>
+ * Every row write goes through here, so the write connection is only used
+ * by one thread. The writer thread takes the writes off a bounded queue and
+ * commits up to batchSize of them at a time, in one transaction. A batch is
+ * committed when it is full, or maxLatencyMillis after its first write was
+ * taken, whichever comes first. A batch holding a write a caller is blocked
+ * on is committed as soon as the queue is empty; the writes queued while it
+ * commits make the next batch. One commit, i.e. one fsync, for a whole batch
+ * instead of one per row is what makes the writes fast on SQLite.
+ */
+class BatchWriter {
+	private static final Logger logger = Database.logger;
+	private static final long IDLE_POLL_MILLIS = 100;
+
+	private final Database database;
+	private final int batchSize;
+	private final long maxLatencyMillis;
+	private final BlockingQueue<DatabaseWrite> queue;
+	private final Thread thread;
+	private volatile boolean running = true;
+	final LatencyHistogram writeLatency = new LatencyHistogram();
+	final LatencyHistogram commitTime = new LatencyHistogram();
+
+	/**
+	 * Creates the writer. Nothing is written until start() is called.
+	 *
+	 * @param database
+	 *            The database the batches are executed on.
+	 * @param batchSize
+	 *            Maximum number of writes per transaction.
+	 * @param maxLatencyMillis
+	 *            Maximum time a write waits for its batch to fill up.
+	 * @param queueCapacity
+	 *            Capacity of the queue. When it is full, submit() blocks.
+	 */
+	BatchWriter(Database database, int batchSize, long maxLatencyMillis, int queueCapacity) {
+		this.database = database;
+		this.batchSize = batchSize;
+		this.maxLatencyMillis = maxLatencyMillis;
+		this.queue = new ArrayBlockingQueue<DatabaseWrite>(queueCapacity);
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "db-writer");
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Commits the writes still queued and stops the writer thread.
+	 */
+	void stop() {
+		running = false;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flushQueue();
+	}
+
+	/**
+	 * Queues a write, waiting for room in the queue if needed.
+	 *
+	 * @return the write, to wait for its completion.
+	 */
+	DatabaseWrite submit(DatabaseWrite write) {
+		write.submittedAt = System.nanoTime();
+		try {
+			queue.put(write);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			write.complete(false);
+			return write;
+		}
+		if (!running) {
+			// the writer thread may be gone already
+			flushQueue();
+		}
+		return write;
+	}
+
+	/**
+	 * Returns the number of writes waiting for their batch.
+	 */
+	int getQueueDepth() {
+		return queue.size();
+	}
+
+	private void write() {
+		List<DatabaseWrite> batch = new ArrayList<DatabaseWrite>(batchSize);
+		while (running) {
+			try {
+				DatabaseWrite first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				boolean awaited = first.awaited;
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+				while (batch.size() < batchSize) {
+					int size = batch.size();
+					if (queue.drainTo(batch, batchSize - size) > 0) {
+						for (int i = size; i < batch.size(); i++) {
+							awaited |= batch.get(i).awaited;
+						}
+						continue;
+					}
+					long remaining = deadline - System.nanoTime();
+					if (awaited || remaining <= 0) {
+						// don't keep a blocked caller waiting for more writes
+						break;
+					}
+					DatabaseWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+					awaited = next.awaited;
+				}
+			} catch (InterruptedException e) {
+				running = false;
+			}
+			if (!batch.isEmpty()) {
+				execute(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	private void flushQueue() {
+		List<DatabaseWrite> batch = new ArrayList<DatabaseWrite>(batchSize);
+		while (queue.drainTo(batch, batchSize) > 0) {
+			execute(batch);
+			batch.clear();
+		}
+	}
+
+	private void execute(List<DatabaseWrite> batch) {
+		long start = System.nanoTime();
+		try {
+			database.executeBatch(batch);
+			long end = System.nanoTime();
+			commitTime.record(end - start);
+			for (DatabaseWrite write : batch) {
+				writeLatency.record(end - write.submittedAt);
+			}
+		} catch (RuntimeException e) {
+			logger.log(Level.SEVERE, "Failed to write a batch of " + batch.size(), e);
+			for (DatabaseWrite write : batch) {
+				if (!write.isDone()) {
+					write.complete(false);
+				}
+			}
+		}
+	}
+}
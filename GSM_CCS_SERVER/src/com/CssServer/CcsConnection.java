@@ -0,0 +1,326 @@
+package com.CssServer;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.PacketInterceptor;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * One authenticated XMPP connection to CCS, with its own flow-control window.
+ *
+ * <p>
+ * Upstream packets received on the connection are handed over to the shared
+ * UpstreamPipeline. The state tracks whether the connection can take new
+ * downstream messages.
+ */
+class CcsConnection {
+	private static final Logger logger = CcsServer.logger;
+
+	/**
+	 * Health of the connection.
+	 */
+	enum State {
+		// connecting and logging in, not usable yet
+		CONNECTING,
+		// logged in and taking downstream messages
+		ACTIVE,
+		// lost, Smack is trying to reconnect
+		RECONNECTING,
+		// CCS announced it will close the connection, only collecting acks
+		DRAINING,
+		// closed for good
+		CLOSED
+	}
+
+	private final int id;
+	private final CcsConnectionPool pool;
+	private final UpstreamPipeline pipeline;
+	private final CcsMetrics metrics;
+	private final InFlightWindow window;
+	private XMPPConnection connection;
+	// changed holding the lock of the connection, read without
+	private volatile State state = State.CONNECTING;
+
+	/**
+	 * Creates a connection. It is opened by connect().
+	 *
+	 * @param id
+	 *            Identifier of the connection, used in the logs.
+	 * @param pool
+	 *            The pool the connection belongs to.
+	 * @param pipeline
+	 *            The pipeline processing the upstream packets.
+	 * @param metrics
+	 *            The metrics counting the packets.
+	 */
+	CcsConnection(int id, CcsConnectionPool pool, UpstreamPipeline pipeline, CcsMetrics metrics) {
+		this.id = id;
+		this.pool = pool;
+		this.pipeline = pipeline;
+		this.metrics = metrics;
+		this.window = new InFlightWindow(CcsServer.CCS_MAX_IN_FLIGHT,
+				new InFlightWindow.Transmitter() {
+					@Override
+					public void transmit(String json) {
+						send(json);
+					}
+				});
+		// nothing is sent until the login
+		window.pause();
+	}
+
+	/**
+	 * Connects to GCM Cloud Connection Server and logs in.
+	 *
+	 * @param config
+	 *            The endpoint and settings of the connection, see
+	 *            CcsServer.createConnectionConfiguration().
+	 * @param username
+	 *            GCM_SENDER_ID@gcm.googleapis.com
+	 * @param password
+	 *            API Key
+	 * @throws XMPPException
+	 */
+	void connect(ConnectionConfiguration config, String username, String password)
+			throws XMPPException {
+		connection = new XMPPConnection(config);
+		connection.connect();
+
+		connection.addConnectionListener(new ConnectionListener() {
+
+			@Override
+			public void reconnectionSuccessful() {
+				logger.info("Connection " + id + " reconnected.");
+				reconnected();
+			}
+
+			@Override
+			public void reconnectionFailed(Exception e) {
+				logger.log(Level.INFO, "Connection " + id + " reconnection failed.. ", e);
+			}
+
+			@Override
+			public void reconnectingIn(int seconds) {
+				logger.log(Level.INFO, "Connection " + id + " reconnecting in {0} secs", seconds);
+			}
+
+			@Override
+			public void connectionClosedOnError(Exception e) {
+				logger.log(Level.INFO, "Connection " + id + " closed on error.");
+				lost(State.RECONNECTING);
+			}
+
+			@Override
+			public void connectionClosed() {
+				logger.info("Connection " + id + " closed.");
+				lost(State.CLOSED);
+			}
+		});
+
+		// Handle incoming packets on the pipeline, off the Smack listener thread
+		connection.addPacketListener(new PacketListener() {
+
+			@Override
+			public void processPacket(Packet packet) {
+				metrics.packetsReceived.increment();
+				CcsServer.logPacket("Received", packet);
+				Message incomingMessage = (Message) packet;
+				GcmPacketExtension gcmPacket = (GcmPacketExtension) incomingMessage
+						.getExtension(CcsServer.GCM_NAMESPACE);
+				try {
+					pipeline.submit(CcsConnection.this, gcmPacket.getJson());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					logger.log(Level.SEVERE, "Interrupted while queuing " + gcmPacket.getJson(), e);
+				}
+			}
+		}, new PacketTypeFilter(Message.class));
+
+		// Log all outgoing packets
+		connection.addPacketInterceptor(new PacketInterceptor() {
+			@Override
+			public void interceptPacket(Packet packet) {
+				CcsServer.logPacket("Sent", packet);
+			}
+		}, new PacketTypeFilter(Message.class));
+
+		connection.login(username, password);
+		synchronized (this) {
+			if (state != State.CONNECTING) {
+				// closed or lost during the login
+				return;
+			}
+			state = State.ACTIVE;
+		}
+		window.resume();
+	}
+
+	/**
+	 * Sends a GCM message straight to the connection, bypassing the window.
+	 */
+	void send(String json) {
+		Packet request = new GcmPacketExtension(json).toPacket();
+		connection.sendPacket(request);
+		metrics.packetsSent.increment();
+	}
+
+	/**
+	 * Sends a downstream message through the flow-control window.
+	 */
+	void sendDownstream(DownstreamMessage message) {
+		window.send(message);
+	}
+
+	/**
+	 * Resumes the sends after Smack reconnected the connection.
+	 */
+	private synchronized void reconnected() {
+		if (state != State.RECONNECTING) {
+			// closed meanwhile
+			return;
+		}
+		state = State.ACTIVE;
+		// CCS won't ack on the new stream what was sent on the lost one
+		List<DownstreamMessage> unacked = window.takeInFlight();
+		// resume the sends queued while the connection was down
+		window.resume();
+		pool.redistribute(unacked);
+	}
+
+	/**
+	 * Stops the sends after the stream was lost or closed.
+	 *
+	 * @param newState
+	 *            RECONNECTING if Smack tries to reconnect, CLOSED otherwise.
+	 */
+	private synchronized void lost(State newState) {
+		window.pause();
+		if (state == State.DRAINING) {
+			// CCS closed it before all the acks came in
+			retire();
+			return;
+		}
+		if (state == State.CLOSED) {
+			newState = State.CLOSED;
+		}
+		state = newState;
+		if (newState == State.CLOSED) {
+			pool.remove(this);
+		}
+		// the acks of the messages in flight went down with the stream
+		handOver();
+	}
+
+	/**
+	 * Stops taking new downstream messages after a CONNECTION_DRAINING.
+	 *
+	 * <p>
+	 * The queued messages move to the other connections of the pool. The
+	 * connection stays open to collect the acks of the messages in flight,
+	 * and retireIfDrained() closes it once they are all in.
+	 *
+	 * @return false if the connection was already draining or closed.
+	 */
+	synchronized boolean startDraining() {
+		if (state == State.DRAINING || state == State.CLOSED) {
+			return false;
+		}
+		state = State.DRAINING;
+		window.pause();
+		pool.redistribute(window.takePending());
+		return true;
+	}
+
+	/**
+	 * Closes a draining connection if no message is waiting for its ack.
+	 */
+	void retireIfDrained() {
+		if (state == State.DRAINING && window.getInFlightCount() == 0) {
+			retire();
+		}
+	}
+
+	/**
+	 * Removes a draining connection from the pool and closes it.
+	 *
+	 * <p>
+	 * Messages still in flight will never be acked on this connection, so
+	 * they are sent again on the others. The devices may get them twice, but
+	 * none is lost.
+	 */
+	private synchronized void retire() {
+		if (state != State.DRAINING) {
+			return;
+		}
+		logger.info("Connection " + id + " drained, closing it.");
+		state = State.CLOSED;
+		pool.remove(this);
+		handOver();
+		if (connection != null) {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Sends the messages in flight and the queued ones again on the other
+	 * connections of the pool.
+	 *
+	 * <p>
+	 * Not while the pool is closing: the other connections are about to
+	 * close too, so the messages in flight are left to their fate and the
+	 * queued ones, never sent, fail.
+	 */
+	private void handOver() {
+		if (pool.isClosing()) {
+			for (DownstreamMessage message : window.takePending()) {
+				message.failed(null);
+			}
+			return;
+		}
+		pool.redistribute(window.takeInFlight());
+		pool.redistribute(window.takePending());
+	}
+
+	/**
+	 * Closes the connection.
+	 */
+	synchronized void close() {
+		state = State.CLOSED;
+		if (connection != null) {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Returns the number of downstream messages in flight or queued.
+	 */
+	int getLoad() {
+		return window.getInFlightCount() + window.getPendingCount();
+	}
+
+	int getId() {
+		return id;
+	}
+
+	State getState() {
+		return state;
+	}
+
+	InFlightWindow getWindow() {
+		return window;
+	}
+
+	@Override
+	public String toString() {
+		return "CcsConnection " + id + " (" + state + ")";
+	}
+}
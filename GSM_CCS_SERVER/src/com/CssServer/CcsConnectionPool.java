@@ -0,0 +1,149 @@
+package com.CssServer;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The pool of CCS connections opened for the sender ID.
+ *
+ * <p>
+ * Every connection has its own window of CcsServer.CCS_MAX_IN_FLIGHT
+ * messages, so the downstream throughput grows with the pool size. Each
+ * downstream message goes to the least loaded active connection.
+ */
+class CcsConnectionPool {
+	private static final Logger logger = CcsServer.logger;
+
+	private final List<CcsConnection> connections = new CopyOnWriteArrayList<CcsConnection>();
+	private volatile boolean closing = false;
+
+	/**
+	 * Adds a connection to the pool.
+	 */
+	void add(CcsConnection connection) {
+		connections.add(connection);
+	}
+
+	/**
+	 * Removes a connection from the pool.
+	 */
+	void remove(CcsConnection connection) {
+		connections.remove(connection);
+	}
+
+	/**
+	 * Returns the connection the next downstream message should go to.
+	 *
+	 * <p>
+	 * This is the active connection with the fewest messages in flight or
+	 * queued. If none is active, the least loaded connection that is still
+	 * connecting or reconnecting is used, so the message waits in its queue.
+	 * Draining connections never get new messages.
+	 *
+	 * @return the connection, or null if every connection is closed.
+	 */
+	CcsConnection pickLeastLoaded() {
+		CcsConnection best = null;
+		int bestLoad = Integer.MAX_VALUE;
+		CcsConnection fallback = null;
+		int fallbackLoad = Integer.MAX_VALUE;
+		for (CcsConnection connection : connections) {
+			CcsConnection.State state = connection.getState();
+			int load = connection.getLoad();
+			if (state == CcsConnection.State.ACTIVE) {
+				if (load < bestLoad) {
+					best = connection;
+					bestLoad = load;
+				}
+			} else if (state == CcsConnection.State.CONNECTING
+					|| state == CcsConnection.State.RECONNECTING) {
+				if (load < fallbackLoad) {
+					fallback = connection;
+					fallbackLoad = load;
+				}
+			}
+		}
+		return best != null ? best : fallback;
+	}
+
+	/**
+	 * Sends a downstream message on the least loaded connection.
+	 *
+	 * @throws IllegalStateException
+	 *             If no connection is open.
+	 */
+	void sendDownstream(DownstreamMessage message) {
+		CcsConnection connection = pickLeastLoaded();
+		if (connection == null) {
+			throw new IllegalStateException("No CCS connection available for "
+					+ message.messageId);
+		}
+		connection.sendDownstream(message);
+	}
+
+	/**
+	 * Sends again messages taken off a connection that can no longer send them.
+	 */
+	void redistribute(List<DownstreamMessage> messages) {
+		for (DownstreamMessage message : messages) {
+			try {
+				sendDownstream(message);
+			} catch (IllegalStateException e) {
+				logger.log(Level.WARNING, "Dropping downstream message " + message.messageId, e);
+				message.failed(null);
+			}
+		}
+	}
+
+	/**
+	 * Returns the connections of the pool.
+	 */
+	List<CcsConnection> getConnections() {
+		return connections;
+	}
+
+	/**
+	 * Returns the number of downstream messages waiting for their ack/nack,
+	 * over all the connections.
+	 */
+	int getInFlightCount() {
+		int count = 0;
+		for (CcsConnection connection : connections) {
+			count += connection.getWindow().getInFlightCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of downstream messages queued until a window opens,
+	 * over all the connections.
+	 */
+	int getPendingCount() {
+		int count = 0;
+		for (CcsConnection connection : connections) {
+			count += connection.getWindow().getPendingCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns true once close() was called. The connections closing then
+	 * don't hand their messages over to each other.
+	 */
+	boolean isClosing() {
+		return closing;
+	}
+
+	/**
+	 * Closes all the connections.
+	 */
+	void close() {
+		closing = true;
+		for (CcsConnection connection : connections) {
+			connection.close();
+		}
+		connections.clear();
+	}
+}
@@ -0,0 +1,288 @@
+package com.CssServer;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Runtime metrics of a CcsServer.
+ *
+ * <p>
+ * The counters are LongAdders and the durations LatencyHistograms, so the
+ * threads recording them never lock nor allocate. The gauges, such as the
+ * window occupancy or the queue depths, are read from the server when they
+ * are asked for.
+ *
+ * <p>
+ * Once started, the metrics are registered as the MXBean
+ * com.CssServer:type=CcsMetrics,id=N and logged every dumpMillis.
+ */
+public class CcsMetrics implements CcsMetricsMXBean {
+	private static final Logger logger = CcsServer.logger;
+	public static final String MBEAN_TYPE = "com.CssServer:type=CcsMetrics";
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	final LongAdder packetsReceived = new LongAdder();
+	final LongAdder packetsSent = new LongAdder();
+	final LongAdder upstreamMessages = new LongAdder();
+	final LongAdder duplicateMessages = new LongAdder();
+	final LongAdder acksReceived = new LongAdder();
+	final LongAdder parseErrors = new LongAdder();
+	final LongAdder connectionDrainings = new LongAdder();
+	final LatencyHistogram parseTime = new LatencyHistogram();
+	final LatencyHistogram handlerTime = new LatencyHistogram();
+	final LatencyHistogram ackRoundTripTime = new LatencyHistogram();
+	private final ConcurrentHashMap<String, LongAdder> nacksByError = new ConcurrentHashMap<String, LongAdder>();
+	private final CcsServer server;
+	// guarded by this
+	private ObjectName name;
+	private ScheduledExecutorService dumper;
+
+	CcsMetrics(CcsServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Registers the MXBean and starts logging the metrics.
+	 *
+	 * @param dumpMillis
+	 *            Interval between two logs of the metrics, 0 to never log
+	 *            them.
+	 */
+	synchronized void start(long dumpMillis) {
+		if (name == null) {
+			try {
+				name = new ObjectName(MBEAN_TYPE + ",id=" + instances.getAndIncrement());
+				ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			} catch (JMException e) {
+				logger.log(Level.WARNING, "Unable to register the metrics MBean", e);
+				name = null;
+			}
+		}
+		if (dumper == null && dumpMillis > 0) {
+			dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "metrics-dump");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			dumper.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					logger.info("Metrics: " + getSnapshot());
+				}
+			}, dumpMillis, dumpMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops logging the metrics, logging them one last time, and
+	 * unregisters the MXBean.
+	 */
+	synchronized void stop() {
+		if (dumper != null) {
+			dumper.shutdownNow();
+			dumper = null;
+			logger.info("Metrics: " + getSnapshot());
+		}
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				logger.log(Level.WARNING, "Unable to unregister the metrics MBean", e);
+			}
+			name = null;
+		}
+	}
+
+	/**
+	 * Counts a NACK.
+	 *
+	 * @param error
+	 *            The "error" field of the NACK, may be null.
+	 */
+	void nacked(String error) {
+		String key = error != null ? error : "UNKNOWN";
+		LongAdder count = nacksByError.get(key);
+		if (count == null) {
+			nacksByError.putIfAbsent(key, new LongAdder());
+			count = nacksByError.get(key);
+		}
+		count.increment();
+	}
+
+	@Override
+	public long getPacketsReceived() {
+		return packetsReceived.sum();
+	}
+
+	@Override
+	public long getPacketsSent() {
+		return packetsSent.sum();
+	}
+
+	@Override
+	public long getUpstreamMessages() {
+		return upstreamMessages.sum();
+	}
+
+	@Override
+	public long getDuplicateMessages() {
+		return duplicateMessages.sum();
+	}
+
+	@Override
+	public long getAcksReceived() {
+		return acksReceived.sum();
+	}
+
+	@Override
+	public long getNacksReceived() {
+		long count = 0;
+		for (LongAdder errorCount : nacksByError.values()) {
+			count += errorCount.sum();
+		}
+		return count;
+	}
+
+	@Override
+	public Map<String, Long> getNacksByError() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : nacksByError.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().sum());
+		}
+		return counts;
+	}
+
+	@Override
+	public long getParseErrors() {
+		return parseErrors.sum();
+	}
+
+	@Override
+	public long getConnectionDrainings() {
+		return connectionDrainings.sum();
+	}
+
+	@Override
+	public LatencySummary getParseTime() {
+		return parseTime.summarize();
+	}
+
+	@Override
+	public LatencySummary getHandlerTime() {
+		return handlerTime.summarize();
+	}
+
+	@Override
+	public LatencySummary getAckRoundTripTime() {
+		return ackRoundTripTime.summarize();
+	}
+
+	@Override
+	public int getConnectionCount() {
+		return server.pool.getConnections().size();
+	}
+
+	@Override
+	public int getInFlightCount() {
+		return server.pool.getInFlightCount();
+	}
+
+	@Override
+	public int getInFlightCapacity() {
+		int capacity = 0;
+		for (CcsConnection connection : server.pool.getConnections()) {
+			capacity += connection.getWindow().getCapacity();
+		}
+		return capacity;
+	}
+
+	@Override
+	public double getInFlightOccupancy() {
+		int capacity = getInFlightCapacity();
+		return capacity == 0 ? 0 : getInFlightCount() / (double) capacity;
+	}
+
+	@Override
+	public int getPendingSendCount() {
+		return server.pool.getPendingCount();
+	}
+
+	@Override
+	public int getRetryPendingCount() {
+		return server.retryScheduler.getPendingCount();
+	}
+
+	@Override
+	public Map<String, Integer> getUpstreamQueueDepths() {
+		UpstreamPipeline pipeline = server.pipeline;
+		if (pipeline == null) {
+			return Collections.emptyMap();
+		}
+		return pipeline.getQueueDepths();
+	}
+
+	@Override
+	public int getDatabaseWriteQueueDepth() {
+		Database database = server.database;
+		return database != null ? database.getWriteQueueDepth() : 0;
+	}
+
+	@Override
+	public int getPendingMembershipUpdates() {
+		Database database = server.database;
+		return database != null ? database.getPendingMembershipUpdateCount() : 0;
+	}
+
+	@Override
+	public LatencySummary getDatabaseWriteLatency() {
+		Database database = server.database;
+		return database != null ? database.getWriteLatency() : new LatencyHistogram().summarize();
+	}
+
+	@Override
+	public LatencySummary getDatabaseCommitTime() {
+		Database database = server.database;
+		return database != null ? database.getCommitTime() : new LatencyHistogram().summarize();
+	}
+
+	@Override
+	public String getSnapshot() {
+		return "received=" + getPacketsReceived()
+				+ " sent=" + getPacketsSent()
+				+ " upstream=" + getUpstreamMessages()
+				+ " duplicates=" + getDuplicateMessages()
+				+ " acks=" + getAcksReceived()
+				+ " nacks=" + getNacksByError()
+				+ " parseErrors=" + getParseErrors()
+				+ " drainings=" + getConnectionDrainings()
+				+ " connections=" + getConnectionCount()
+				+ " inFlight=" + getInFlightCount() + "/" + getInFlightCapacity()
+				+ " pendingSends=" + getPendingSendCount()
+				+ " pendingRetries=" + getRetryPendingCount()
+				+ " queues=" + getUpstreamQueueDepths()
+				+ " dbQueue=" + getDatabaseWriteQueueDepth()
+				+ " dbPendingUpdates=" + getPendingMembershipUpdates()
+				+ "; parse: " + getParseTime()
+				+ "; handler: " + getHandlerTime()
+				+ "; ack round trip: " + getAckRoundTripTime()
+				+ "; db write: " + getDatabaseWriteLatency()
+				+ "; db commit: " + getDatabaseCommitTime();
+	}
+}
@@ -0,0 +1,126 @@
+package com.CssServer;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the CcsMetrics of a server.
+ *
+ * <p>
+ * The counts are totals since the server was created. The durations are
+ * summarized in microseconds, see LatencySummary.
+ */
+public interface CcsMetricsMXBean {
+	/**
+	 * Returns the number of stanzas received from CCS.
+	 */
+	long getPacketsReceived();
+
+	/**
+	 * Returns the number of stanzas sent to CCS, the ACKs included.
+	 */
+	long getPacketsSent();
+
+	/**
+	 * Returns the number of upstream data messages, duplicates included.
+	 */
+	long getUpstreamMessages();
+
+	/**
+	 * Returns the number of upstream data messages redelivered by CCS.
+	 */
+	long getDuplicateMessages();
+
+	long getAcksReceived();
+
+	long getNacksReceived();
+
+	/**
+	 * Returns the number of NACKs received, by error code.
+	 */
+	Map<String, Long> getNacksByError();
+
+	/**
+	 * Returns the number of upstream stanzas whose JSON, or data payload,
+	 * couldn't be decoded.
+	 */
+	long getParseErrors();
+
+	long getConnectionDrainings();
+
+	/**
+	 * Returns the time taken to decode the JSON of an upstream stanza.
+	 */
+	LatencySummary getParseTime();
+
+	/**
+	 * Returns the time taken by the handlers of the upstream messages,
+	 * location updates included.
+	 */
+	LatencySummary getHandlerTime();
+
+	/**
+	 * Returns the time from the transmission of a downstream message to its
+	 * ack/nack.
+	 */
+	LatencySummary getAckRoundTripTime();
+
+	int getConnectionCount();
+
+	/**
+	 * Returns the number of downstream messages waiting for their ack/nack.
+	 */
+	int getInFlightCount();
+
+	/**
+	 * Returns the number of downstream messages the windows of all the
+	 * connections can hold.
+	 */
+	int getInFlightCapacity();
+
+	/**
+	 * Returns the fraction of the windows in use, from 0 to 1.
+	 */
+	double getInFlightOccupancy();
+
+	/**
+	 * Returns the number of downstream messages queued until a window opens.
+	 */
+	int getPendingSendCount();
+
+	/**
+	 * Returns the number of NACKed messages waiting for their retry.
+	 */
+	int getRetryPendingCount();
+
+	/**
+	 * Returns the number of messages queued in front of each stage of the
+	 * upstream pipeline.
+	 */
+	Map<String, Integer> getUpstreamQueueDepths();
+
+	/**
+	 * Returns the number of writes queued for the database writer.
+	 */
+	int getDatabaseWriteQueueDepth();
+
+	/**
+	 * Returns the number of buffered membership updates not committed yet.
+	 */
+	int getPendingMembershipUpdates();
+
+	/**
+	 * Returns the time from the submission of a database write to its
+	 * commit.
+	 */
+	LatencySummary getDatabaseWriteLatency();
+
+	/**
+	 * Returns the time taken to execute and commit a batch of writes.
+	 */
+	LatencySummary getDatabaseCommitTime();
+
+	/**
+	 * Returns all the metrics on one line, as they are logged.
+	 */
+	String getSnapshot();
+}
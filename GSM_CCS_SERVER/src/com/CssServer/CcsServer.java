@@ -1,12 +1,13 @@
 package com.CssServer;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.spec.MGF1ParameterSpec;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.FileHandler;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
@@ -17,20 +18,13 @@ import java.util.logging.SimpleFormatter;
 import javax.net.ssl.SSLSocketFactory;
 
 import org.jivesoftware.smack.ConnectionConfiguration;
-import org.jivesoftware.smack.ConnectionListener;
-import org.jivesoftware.smack.PacketInterceptor;
-import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException;
-import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
-import org.jivesoftware.smack.filter.PacketTypeFilter;
-import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.provider.PacketExtensionProvider;
 import org.jivesoftware.smack.provider.ProviderManager;
-import org.json.simple.JSONValue;
-import org.json.simple.parser.ParseException;
 import org.xmlpull.v1.XmlPullParser;
 
 import com.CssServer.GcmPacketExtension;
@@ -45,19 +39,76 @@ public class CcsServer {
 	public static final String GCM_ELEMENT_NAME = "gcm";
 	public static final String GCM_NAMESPACE = "google:mobile:data";
 	public static final String DATABASE_FILE = "C:/Users/Hi/Documents/GitHub/CSS/GSM_CCS_SERVER/databases/test.db";
+	public static final String SNAPSHOT_SUFFIX = ".snapshot";
+	public static final String SNAPSHOT_FILE = DATABASE_FILE + SNAPSHOT_SUFFIX;
 	public static final String LOG_FILENAME = "./CcsServer.log";
+	// Run with -Dcom.CssServer.databaseSelfTest=true to exercise the Database on
+	// a scratch file next to the database file, see testDatabase()
+	public static final boolean RUN_DATABASE_SELF_TEST = Boolean.getBoolean("com.CssServer.databaseSelfTest");
+	public static final String SELF_TEST_SUFFIX = ".selftest";
+	// Run with -Dcom.CssServer.productionLogging=true under load, see initializeLogging()
+	public static final boolean PRODUCTION_LOGGING = Boolean.getBoolean("com.CssServer.productionLogging");
+	public static final int LOG_BUFFER_CAPACITY = 8192;
+	public static final int PACKET_LOGS_PER_SECOND = 10;
+	public static final int UPSTREAM_WORKERS = Runtime.getRuntime().availableProcessors();
+	public static final int UPSTREAM_QUEUE_CAPACITY = 1000;
+	public static final int CCS_MAX_IN_FLIGHT = 100;
+	public static final int CCS_CONNECTIONS = 1;
+	public static final int DEDUP_CAPACITY = 500000;
+	public static final long DEDUP_WINDOW_MILLIS = 10 * 60 * 1000;
+	public static final int FANOUT_THREADS = Runtime.getRuntime().availableProcessors();
+	public static final long LOCATION_FLUSH_MILLIS = 1000;
+	public static final int LOCATION_MAX_ASSIGNMENTS = 1000000;
+	// distinguishes the message ids of the servers sharing the sender id
+	public static final int MESSAGE_ID_NODE = Integer.getInteger("com.CssServer.nodeId", 0);
+	// the CCS endpoint, a local stand-in can be set for the load tests
+	public static final String CCS_HOST = System.getProperty("com.CssServer.ccsHost", GCM_SERVER);
+	public static final int CCS_PORT = Integer.getInteger("com.CssServer.ccsPort", GCM_PORT);
+	public static final boolean CCS_INSECURE = Boolean.getBoolean("com.CssServer.ccsInsecure");
+	// interval between two logs of the metrics, 0 to only expose them over JMX
+	public static final long METRICS_DUMP_MILLIS = Long.getLong("com.CssServer.metricsDumpMillis", 60 * 1000);
 
 	static Random random = new Random();
-	XMPPConnection connection;
-	ConnectionConfiguration config;
+	static PacketLogSampler packetLogSampler = new PacketLogSampler(Integer.MAX_VALUE);
+	// every packet at FINE, or the sampled ones at INFO in production
+	static Level packetLogLevel = Level.FINE;
 	Database database;
+	UpstreamPipeline pipeline;
+	CcsConnectionPool pool = new CcsConnectionPool();
+	RetryScheduler retryScheduler = new RetryScheduler(pool);
+	CcsMetrics metrics = new CcsMetrics(this);
+	GroupFanout fanout;
+	LocationTracker locationTracker;
+	MessageIdGenerator messageIdGenerator = new SequentialMessageIdGenerator(MESSAGE_ID_NODE);
+	DeduplicationCache deduplicationCache = new DeduplicationCache(DEDUP_CAPACITY, DEDUP_WINDOW_MILLIS);
+	AtomicInteger nextConnectionId = new AtomicInteger();
+	String username;
+	String password;
+	int upstreamWorkers = UPSTREAM_WORKERS;
+	int upstreamQueueCapacity = UPSTREAM_QUEUE_CAPACITY;
+	int connectionCount = CCS_CONNECTIONS;
+	String ccsHost = CCS_HOST;
+	int ccsPort = CCS_PORT;
+	boolean ccsSecure = !CCS_INSECURE;
+	boolean xmppDebuggerEnabled = true;
 
 	public CcsServer() {
+		this(DATABASE_FILE);
+	}
+
+	/**
+	 * Creates a server on the specified database.
+	 * 
+	 * @param databaseFile
+	 *            Full path to the database file. The snapshot of the cache is
+	 *            written next to it, with SNAPSHOT_SUFFIX.
+	 */
+	public CcsServer(String databaseFile) {
 		// start the logging to file
 		initializeLogging(LOG_FILENAME);
 		
 		// start the database and create groups
-		initializeDatabase();
+		initializeDatabase(databaseFile);
 		
 		ProviderManager.getInstance().addExtensionProvider(GCM_ELEMENT_NAME,
 				GCM_NAMESPACE, new PacketExtensionProvider() {
@@ -76,22 +127,51 @@ public class CcsServer {
 	 * 
 	 * <p>
 	 * Creates the database and create the two groups;
-	 * GroupName and Membership table.
+	 * GroupName and Membership table. The cache is loaded from the snapshot
+	 * file when it is recent enough, so the startup doesn't read every row.
+	 * The database stays open for the lifetime of the server, it is closed
+	 * by disconnect().
 	 * 
 	 */
-	private void initializeDatabase() {
+	private void initializeDatabase(String databaseFile) {
+		if (RUN_DATABASE_SELF_TEST) {
+			testDatabase(databaseFile + SELF_TEST_SUFFIX);
+		}
+
 		// start the database
 		try {
-			database = new Database(DATABASE_FILE);
+			database = new Database(databaseFile);
 		} catch (ClassNotFoundException e) {
 			logger.severe("Failed to create the database.");
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 		
-		//Unit tests for database
-		database.createGroupNameTable();
-		database.createMembershipTable();
+		database.createTables(databaseFile + SNAPSHOT_SUFFIX, Database.SNAPSHOT_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Unit tests for database.
+	 * 
+	 * <p>
+	 * Fills, reads, updates and empties the two tables, logging the content
+	 * along the way. Runs on its own database file, removed at the end, so
+	 * the data and the snapshot of the server are left alone.
+	 * 
+	 * @param testFile
+	 *            Full path to the scratch database file.
+	 */
+	private void testDatabase(String testFile) {
+		Database scratch;
+		try {
+			scratch = new Database(testFile);
+		} catch (ClassNotFoundException e) {
+			logger.severe("Failed to create the self test database.");
+			e.printStackTrace();
+			return;
+		}
+		scratch.createGroupNameTable();
+		scratch.createMembershipTable();
 		
 		GroupNameEntry group1 = new GroupNameEntry("testGroup1", -5.5, 6.6);
 		GroupNameEntry group2 = new GroupNameEntry("testGroup2", -7.4, 8.6);
@@ -100,23 +180,23 @@ public class CcsServer {
 		MembershipEntry member3 = new MembershipEntry("userID3", group2);
 		MembershipEntry member4 = new MembershipEntry("userID4", group1);
 		
-		database.addEntryToGroupNameTable(group1);
-		database.addEntryToGroupNameTable(group2);
+		scratch.addEntryToGroupNameTable(group1);
+		scratch.addEntryToGroupNameTable(group2);
 		
-		database.addEntryToMembershipTable(member1);
-		database.addEntryToMembershipTable(member2);
-		database.addEntryToMembershipTable(member3);
-		database.addEntryToMembershipTable(member4);
+		scratch.addEntryToMembershipTable(member1);
+		scratch.addEntryToMembershipTable(member2);
+		scratch.addEntryToMembershipTable(member3);
+		scratch.addEntryToMembershipTable(member4);
 		
 		Vector<GroupNameEntry> gEntries = new Vector<GroupNameEntry>();
-		gEntries = database.getGroupNameTableEntries();
+		gEntries = scratch.getGroupNameTableEntries();
 		for (int i = 0; i < gEntries.size(); i++) {
 			logger.info("GroupName N LA LO:" + gEntries.get(i).name + " " +
 					                           gEntries.get(i).latitude + " " +
 					                           gEntries.get(i).longitude);
 		}
 		Vector<MembershipEntry> mEntries = new Vector<MembershipEntry>();
-		mEntries = database.getMembershipTableEntries();
+		mEntries = scratch.getMembershipTableEntries();
 		for (int i = 0; i < mEntries.size(); i++) {
 			logger.info("Membership I N LA LO:" + mEntries.get(i).userid     + " " +
 					                              mEntries.get(i).membership.name + " " +
@@ -125,10 +205,10 @@ public class CcsServer {
 		}
 		
 		mEntries.clear();
-		database.updateEntryOfMembershipTable("userID1", "testGroup2", -7.5, 8.6);
-		database.updateEntryOfMembershipTable("userID4", "testGroup2", -7.5, 8.6);
+		scratch.updateEntryOfMembershipTable("userID1", "testGroup2", -7.5, 8.6);
+		scratch.updateEntryOfMembershipTable("userID4", "testGroup2", -7.5, 8.6);
 		logger.info("Updating user ID1 and ID4...");
-		mEntries = database.getMembershipTableEntries();
+		mEntries = scratch.getMembershipTableEntries();
 		for (int i = 0; i < mEntries.size(); i++) {
 			logger.info("Membership I N LA LO:" + mEntries.get(i).userid     + " " +
 					                              mEntries.get(i).membership.name + " " +
@@ -137,9 +217,9 @@ public class CcsServer {
 		}
 		mEntries.clear();
 		logger.info("Removing user ID1 and ID4");
-		database.removeEntryFromMembershipTable("userID1");
-		database.removeEntryFromMembershipTable("userID4");
-		mEntries = database.getMembershipTableEntries();
+		scratch.removeEntryFromMembershipTable("userID1");
+		scratch.removeEntryFromMembershipTable("userID4");
+		mEntries = scratch.getMembershipTableEntries();
 		for (int i = 0; i < mEntries.size(); i++) {
 			logger.info("Membership I N LA LO:" + mEntries.get(i).userid     + " " +
 					                              mEntries.get(i).membership.name + " " +
@@ -147,9 +227,9 @@ public class CcsServer {
 					                              mEntries.get(i).membership.longitude);
 		}
 		logger.info("Removing testgroup1");
-		database.removeEntryFromGroupNameTable(group1);
+		scratch.removeEntryFromGroupNameTable(group1);
 		gEntries.clear();
-		gEntries = database.getGroupNameTableEntries();
+		gEntries = scratch.getGroupNameTableEntries();
 		for (int i = 0; i < gEntries.size(); i++) {
 			logger.info("GroupName N LA LO:" + gEntries.get(i).name + " " +
 					                           gEntries.get(i).latitude + " " +
@@ -157,10 +237,12 @@ public class CcsServer {
 		}
 		
 		logger.info("Removing membership and groupname tables");
-		database.removeMembershipTable();
-		database.removeGroupNameTable();
-		
-		database.close();
+		scratch.removeMembershipTable();
+		scratch.removeGroupNameTable();
+		scratch.close();
+		for (String suffix : new String[] { "", "-wal", "-shm", "-journal" }) {
+			new File(testFile + suffix).delete();
+		}
 		return;
 	}
 
@@ -168,7 +250,11 @@ public class CcsServer {
 	 * Initializes the logger.
 	 * 
 	 * <p>
-	 * The logs are directed to a file specified by logFilename.
+	 * The logs are directed to a file specified by logFilename. By default
+	 * everything is logged synchronously, including every packet. With
+	 * PRODUCTION_LOGGING the file is written by an AsyncLogHandler, nothing
+	 * goes to the console, only INFO and above are logged and the packets are
+	 * logged at INFO, PACKET_LOGS_PER_SECOND at most.
 	 * 
 	 * @param logFilename
 	 *        The name of the log file.
@@ -179,10 +265,18 @@ public class CcsServer {
 		try {
 			fileHandler = new FileHandler(logFilename);
 			simpleFormatter = new SimpleFormatter();
-			logger.addHandler(fileHandler);
 			fileHandler.setFormatter(simpleFormatter);
 			fileHandler.setLevel(Level.ALL);
-			logger.setLevel(Level.ALL);
+			if (PRODUCTION_LOGGING) {
+				fileHandler = new AsyncLogHandler(fileHandler, LOG_BUFFER_CAPACITY);
+				logger.setUseParentHandlers(false);
+				logger.setLevel(Level.INFO);
+				packetLogSampler = new PacketLogSampler(PACKET_LOGS_PER_SECOND);
+				packetLogLevel = Level.INFO;
+			} else {
+				logger.setLevel(Level.ALL);
+			}
+			logger.addHandler(fileHandler);
 			logger.info("Logging started...");
 			
 			if(database != null) {
@@ -193,49 +287,224 @@ public class CcsServer {
 			logger.log(Level.SEVERE, "Unable to redirect the log to a file: ", exception);
 		}
 	}
+
+	/**
+	 * Logs a complete packet at packetLogLevel, within the packet log rate.
+	 * 
+	 * @param direction
+	 *            "Received" or "Sent".
+	 * @param packet
+	 *            The packet, only rendered if it is logged.
+	 */
+	static void logPacket(String direction, Packet packet) {
+		Level level = packetLogLevel;
+		if (!logger.isLoggable(level) || !packetLogSampler.sample()) {
+			return;
+		}
+		long suppressed = packetLogSampler.takeSuppressedCount();
+		if (suppressed > 0) {
+			logger.log(level, direction + ": " + packet.toXML() + " ("
+					+ suppressed + " packets not logged)");
+		} else {
+			logger.log(level, direction + ": " + packet.toXML());
+		}
+	}
+
 	/**
 	 * Returns message id to uniquely identify a message.
 	 * 
 	 * <p>
-	 * Unique message ids will be produced.
+	 * Unique message ids will be produced, by the generator set with
+	 * setMessageIdGenerator().
 	 * 
 	 */
 	public String getRandomMessageId() {
-		String msg_uuid =  UUIDGenerator.generate();
-		if (msg_uuid.isEmpty())
+		String msg_uuid = messageIdGenerator.next();
+		if (msg_uuid == null || msg_uuid.isEmpty())
 		{
 			// Fall back on a weak ID generator
-			logger.log(Level.SEVERE, "UUIDGenerator failed to produce UUID");
+			logger.log(Level.SEVERE, "The message id generator failed to produce an id");
 			return "m-" + Long.toString(random.nextLong());
 		}
 		return msg_uuid;
 	}
 
 	/**
-	 * Sends a downstream GCM message.
+	 * Sets the generator of the message ids.
+	 * 
+	 * <p>
+	 * By default, a SequentialMessageIdGenerator with MESSAGE_ID_NODE as its
+	 * node id. UUIDGenerator gives random ids instead.
+	 * 
+	 * @param generator
+	 *            The generator, called concurrently by the sending threads.
+	 */
+	public void setMessageIdGenerator(MessageIdGenerator generator) {
+		messageIdGenerator = generator;
+	}
+
+	/**
+	 * Sizes the pipeline processing the upstream messages.
+	 * 
+	 * <p>
+	 * Must be called before connect(). By default there is one decode and one
+	 * dispatch worker per core.
+	 * 
+	 * @param workers
+	 *            Number of worker threads of the decode and dispatch stages.
+	 * @param queueCapacity
+	 *            Capacity of the queue in front of every stage. When a queue
+	 *            is full, the stage feeding it blocks.
+	 */
+	public void setUpstreamPipelineSize(int workers, int queueCapacity) {
+		upstreamWorkers = workers;
+		upstreamQueueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Sets the number of CCS connections opened by connect().
+	 * 
+	 * <p>
+	 * Must be called before connect(). CCS allows several connections per
+	 * sender ID, each with its own window of CCS_MAX_IN_FLIGHT messages.
+	 * 
+	 * @param connections
+	 *            Number of connections in the pool.
+	 */
+	public void setConnectionPoolSize(int connections) {
+		connectionCount = connections;
+	}
+
+	/**
+	 * Sets the CCS endpoint the connections are opened to.
+	 * 
+	 * <p>
+	 * Must be called before connect(). By default CCS_HOST and CCS_PORT, over
+	 * TLS unless CCS_INSECURE is set, which is only meant for a local
+	 * stand-in of CCS.
+	 * 
+	 * @param host
+	 *            Host name of the endpoint.
+	 * @param port
+	 *            Port of the endpoint.
+	 * @param secure
+	 *            True to connect over TLS, as CCS requires.
+	 */
+	public void setCcsEndpoint(String host, int port, boolean secure) {
+		ccsHost = host;
+		ccsPort = port;
+		ccsSecure = secure;
+	}
+
+	/**
+	 * Enables the Smack debugger, showing the packets sent and received.
+	 * 
+	 * <p>
+	 * Must be called before connect(). Enabled by default.
+	 */
+	public void setXmppDebuggerEnabled(boolean enabled) {
+		xmppDebuggerEnabled = enabled;
+	}
+
+	/**
+	 * Sends a GCM message straight to the least loaded connection.
+	 * 
+	 * <p>
+	 * Bypasses the flow-control window, so it must only be used for the
+	 * messages CCS doesn't ack. Downstream messages go through
+	 * sendDownstream(), and the ACKs of upstream messages are sent by the
+	 * pipeline on the connection they came from.
 	 */
 	public void send(String jsonRequest) {
-		Packet request = new GcmPacketExtension(jsonRequest).toPacket();
-		connection.sendPacket(request);
+		CcsConnection connection = pool.pickLeastLoaded();
+		if (connection == null) {
+			throw new IllegalStateException("No CCS connection available");
+		}
+		connection.send(jsonRequest);
+	}
+
+	/**
+	 * Sends a downstream GCM message.
+	 * 
+	 * <p>
+	 * The message goes to the least loaded connection of the pool. It is
+	 * transmitted right away if fewer than CCS_MAX_IN_FLIGHT messages are
+	 * waiting for their ack/nack on that connection. Otherwise it is queued,
+	 * and sent as soon as an ack/nack frees a slot.
+	 * 
+	 * @param messageId
+	 *            The message_id of the message, as set in jsonRequest.
+	 * @param jsonRequest
+	 *            JSON encoded GCM message, see createJsonMessage().
+	 */
+	public void sendDownstream(String messageId, String jsonRequest) {
+		pool.sendDownstream(new DownstreamMessage(messageId, jsonRequest));
+	}
+
+	/**
+	 * Sends a message to every member of a group.
+	 * 
+	 * <p>
+	 * Returns right away. The members are read from the membership cache and
+	 * sent to in parallel batches over all the connections; the returned
+	 * progress counts the messages sent, delivered and failed.
+	 * 
+	 * @param groupName
+	 *            The group to send to.
+	 * @param payload
+	 *            Message content intended for the application.
+	 * @return the progress of the broadcast.
+	 */
+	public GroupSendProgress sendToGroup(String groupName, Map<String, String> payload) {
+		return fanout.send(groupName, payload);
+	}
+
+	/**
+	 * Returns the number of downstream messages waiting for their ack/nack,
+	 * over all the connections.
+	 */
+	public int getInFlightCount() {
+		return pool.getInFlightCount();
+	}
+
+	/**
+	 * Returns the number of downstream messages queued until a window opens,
+	 * over all the connections.
+	 */
+	public int getPendingSendCount() {
+		return pool.getPendingCount();
+	}
+
+	/**
+	 * Returns the runtime metrics of the server, also registered as an
+	 * MXBean once connected.
+	 */
+	public CcsMetrics getMetrics() {
+		return metrics;
 	}
 
 	/**
 	 * Handles an upstream data message from a device application.
 	 * 
 	 * <p>
-	 * Subclasses should override this method to process an upstream message.
+	 * Called once per message_id: messages redelivered by CCS within
+	 * DEDUP_WINDOW_MILLIS are only ACKed again. Location updates are handled
+	 * by the server and don't come here, see LocationTracker. The payload is only parsed
+	 * when message.getData() is called. Subclasses should override this method
+	 * to process an upstream message.
 	 */
-	public void handleIncomingDataMessage(Map<String, Object> jsonObject) {
-		@SuppressWarnings("unchecked")
-		Map<String, String> payload = (Map<String, String>) jsonObject
-				.get("data");
+	public void handleIncomingDataMessage(UpstreamMessage message) {
+		Map<String, String> payload = message.getData();
 
-		String from = jsonObject.get("from").toString();
+		String from = message.from;
 		// PackageName of the application that sent this message.
-		String category = jsonObject.get("category").toString();
+		String category = message.category;
 	
-		logger.log(Level.INFO, "Application: " + category);
-		logger.log(Level.INFO, "From: " + from);
+		if (!logger.isLoggable(Level.FINE)) {
+			return;
+		}
+		logger.log(Level.FINE, "Application: " + category);
+		logger.log(Level.FINE, "From: " + from);
 		
 		// Handle what happens with upstream messages
 		Iterator<String> iterator = payload.keySet().iterator();
@@ -243,36 +512,47 @@ public class CcsServer {
 		{
 			String key = iterator.next();
 			String value = payload.get(key);
-			logger.log(Level.INFO, "Data.key: " + key + " Data.value: " + value);
+			logger.log(Level.FINE, "Data.key: " + key + " Data.value: " + value);
 		}
 	}
 
+	/**
+	 * Persists an upstream data message once it has been handled.
+	 * 
+	 * <p>
+	 * Runs on the persist stage of the pipeline, after
+	 * handleIncomingDataMessage(). Does nothing by default; subclasses should
+	 * override this method to store what the message produced.
+	 */
+	public void persistIncomingDataMessage(UpstreamMessage message) {
+	}
+
 	/**
 	 * Handles an ACK.
 	 * 
 	 * <p>
-	 * By default, it only logs a INFO message, but subclasses could override it
+	 * By default, it only logs a FINE message, but subclasses could override it
 	 * to properly handle ACKS.
 	 */
-	public void handleAckReceipt(Map<String, Object> jsonObject) {
-		String messageId = jsonObject.get("message_id").toString();
-		String from = jsonObject.get("from").toString();
-		logger.log(Level.INFO, "handleAckReceipt() from: " + from
-				+ ", messageId: " + messageId);
+	public void handleAckReceipt(UpstreamMessage message) {
+		if (logger.isLoggable(Level.FINE)) {
+			logger.log(Level.FINE, "handleAckReceipt() from: " + message.from
+					+ ", messageId: " + message.messageId);
+		}
 	}
 
 	/**
 	 * Handles a NACK.
 	 * 
 	 * <p>
-	 * By default, it only logs a INFO message, but subclasses could override it
-	 * to properly handle NACKS.
+	 * Messages NACKed with a transient error have already been scheduled for a
+	 * retry by the time this is called, see RetryScheduler. By default, it only
+	 * logs a INFO message, but subclasses could override it to properly handle
+	 * NACKS.
 	 */
-	public void handleNackReceipt(Map<String, Object> jsonObject) {
-		String messageId = jsonObject.get("message_id").toString();
-		String from = jsonObject.get("from").toString();
-		logger.log(Level.INFO, "handleNackReceipt() from: " + from
-				+ ", messageId: " + messageId);
+	public void handleNackReceipt(UpstreamMessage message) {
+		logger.log(Level.INFO, "handleNackReceipt() from: " + message.from
+				+ ", messageId: " + message.messageId + ", error: " + message.error);
 	}
 
 	/**
@@ -296,20 +576,8 @@ public class CcsServer {
 	public static String createJsonMessage(String to, String messageId,
 			Map<String, String> payload, String collapseKey, Long timeToLive,
 			Boolean delayWhileIdle) {
-		Map<String, Object> message = new HashMap<String, Object>();
-		message.put("to", to);
-		if (collapseKey != null) {
-			message.put("collapse_key", collapseKey);
-		}
-		if (timeToLive != null) {
-			message.put("time_to_live", timeToLive);
-		}
-		if (delayWhileIdle != null && delayWhileIdle) {
-			message.put("delay_while_idle", true);
-		}
-		message.put("message_id", messageId);
-		message.put("data", payload);
-		return JSONValue.toJSONString(message);
+		return JsonEncoder.encodeMessage(to, messageId, payload, collapseKey,
+				timeToLive, delayWhileIdle);
 	}
 
 	/**
@@ -323,16 +591,16 @@ public class CcsServer {
 	 * @return JSON encoded ack.
 	 */
 	public static String createJsonAck(String to, String messageId) {
-		Map<String, Object> message = new HashMap<String, Object>();
-		message.put("message_type", "ack");
-		message.put("to", to);
-		message.put("message_id", messageId);
-		return JSONValue.toJSONString(message);
+		return JsonEncoder.encodeAck(to, messageId);
 	}
 
 	/**
 	 * Connects to GCM Cloud Connection Server using the supplied credentials.
 	 * 
+	 * <p>
+	 * Opens the pool of connections set by setConnectionPoolSize(). The
+	 * upstream messages of all the connections are processed by one pipeline.
+	 * 
 	 * @param username
 	 *            GCM_SENDER_ID@gcm.googleapis.com
 	 * @param password
@@ -340,106 +608,128 @@ public class CcsServer {
 	 * @throws XMPPException
 	 */
 	public void connect(String username, String password) throws XMPPException {
-		config = new ConnectionConfiguration(GCM_SERVER, GCM_PORT);
-		config.setSecurityMode(SecurityMode.enabled);
+		this.username = username;
+		this.password = password;
+		metrics.start(METRICS_DUMP_MILLIS);
+		retryScheduler.start();
+		fanout = new GroupFanout(this, FANOUT_THREADS);
+		locationTracker = new LocationTracker(database, LOCATION_FLUSH_MILLIS,
+				LOCATION_MAX_ASSIGNMENTS);
+		locationTracker.start();
+		pipeline = new UpstreamPipeline(this, upstreamWorkers, upstreamQueueCapacity);
+		pipeline.start();
+
+		for (int i = 0; i < connectionCount; i++) {
+			login(addConnection());
+		}
+	}
+
+	/**
+	 * Creates a new connection and adds it to the pool.
+	 * 
+	 * <p>
+	 * The connection is in the pool before it logs in, so it can already
+	 * queue downstream messages.
+	 */
+	CcsConnection addConnection() {
+		CcsConnection connection = new CcsConnection(
+				nextConnectionId.getAndIncrement(), pool, pipeline, metrics);
+		pool.add(connection);
+		return connection;
+	}
+
+	/**
+	 * Opens a connection created by addConnection().
+	 * 
+	 * <p>
+	 * If the login fails, the connection leaves the pool and its queued
+	 * messages move to the other connections.
+	 */
+	void login(CcsConnection connection) throws XMPPException {
+		try {
+			connection.connect(createConnectionConfiguration(), username, password);
+		} catch (XMPPException e) {
+			pool.remove(connection);
+			pool.redistribute(connection.getWindow().takePending());
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the configuration of a new connection to the CCS endpoint.
+	 */
+	ConnectionConfiguration createConnectionConfiguration() {
+		ConnectionConfiguration config = new ConnectionConfiguration(ccsHost, ccsPort);
+		if (ccsSecure) {
+			config.setSecurityMode(SecurityMode.enabled);
+			config.setSocketFactory(SSLSocketFactory.getDefault());
+		} else {
+			config.setSecurityMode(SecurityMode.disabled);
+		}
 		config.setReconnectionAllowed(true);
 		config.setRosterLoadedAtLogin(false);
 		config.setSendPresence(false);
-		config.setSocketFactory(SSLSocketFactory.getDefault());
 
-		// NOTE: Set to true to launch a window with information about packets
+		// NOTE: The debugger launches a window with information about packets
 		// sent and received
-		config.setDebuggerEnabled(true);
-
-		XMPPConnection.DEBUG_ENABLED = true;
-
-		connection = new XMPPConnection(config);
-		connection.connect();
-
-		connection.addConnectionListener(new ConnectionListener() {
-
-			@Override
-			public void reconnectionSuccessful() {
-				logger.info("Reconnecting..");
-			}
-
-			@Override
-			public void reconnectionFailed(Exception e) {
-				logger.log(Level.INFO, "Reconnection failed.. ", e);
-			}
-
-			@Override
-			public void reconnectingIn(int seconds) {
-				logger.log(Level.INFO, "Reconnecting in %d secs", seconds);
-			}
-
-			@Override
-			public void connectionClosedOnError(Exception e) {
-				logger.log(Level.INFO, "Connection closed on error.");
-			}
+		config.setDebuggerEnabled(xmppDebuggerEnabled);
 
-			@Override
-			public void connectionClosed() {
-				logger.info("Connection closed.");
-			}
-		});
-
-		// Handle incoming packets
-		connection.addPacketListener(new PacketListener() {
+		XMPPConnection.DEBUG_ENABLED = xmppDebuggerEnabled;
+		return config;
+	}
 
+	/**
+	 * Handles a CONNECTION_DRAINING control message.
+	 * 
+	 * <p>
+	 * CCS is about to close the connection. A replacement is opened right away
+	 * and new sends stop going to the draining connection, which stays open
+	 * until the acks of its messages in flight are in.
+	 * 
+	 * @param draining
+	 *            The connection the control message came in on.
+	 */
+	void connectionDraining(final CcsConnection draining) {
+		logger.info("CCS is draining connection " + draining.getId());
+		// add the replacement first, so the queued sends have a place to go
+		final CcsConnection replacement = addConnection();
+		if (!draining.startDraining()) {
+			pool.remove(replacement);
+			return;
+		}
+		Thread connector = new Thread(new Runnable() {
 			@Override
-			public void processPacket(Packet packet) {
-				logger.log(Level.INFO, "Received: " + packet.toXML());
-				Message incomingMessage = (Message) packet;
-				GcmPacketExtension gcmPacket = (GcmPacketExtension) incomingMessage
-						.getExtension(GCM_NAMESPACE);
-				String json = gcmPacket.getJson();
+			public void run() {
 				try {
-					@SuppressWarnings("unchecked")
-					Map<String, Object> jsonObject = (Map<String, Object>) JSONValue
-							.parseWithException(json);
-
-					// present for "ack"/"nack", null otherwise
-					Object messageType = jsonObject.get("message_type");
-
-					if (messageType == null) {
-						// Normal upstream data message
-						handleIncomingDataMessage(jsonObject);
-
-						// Send ACK to CCS
-						String messageId = jsonObject.get("message_id")
-								.toString();
-						String from = jsonObject.get("from").toString();
-						String ack = createJsonAck(from, messageId);
-						send(ack);
-					} else if ("ack".equals(messageType.toString())) {
-						// Process Ack
-						handleAckReceipt(jsonObject);
-					} else if ("nack".equals(messageType.toString())) {
-						// Process Nack
-						handleNackReceipt(jsonObject);
-					} else {
-						logger.log(Level.WARNING,
-								"Unrecognized message type (%s)",
-								messageType.toString());
-					}
-				} catch (ParseException e) {
-					logger.log(Level.SEVERE, "Error parsing JSON " + json, e);
-				} catch (Exception e) {
-					logger.log(Level.SEVERE, "Couldn't send echo.", e);
+					login(replacement);
+				} catch (XMPPException e) {
+					logger.log(Level.SEVERE, "Unable to replace draining connection "
+							+ draining.getId(), e);
 				}
 			}
-		}, new PacketTypeFilter(Message.class));
-
-		// Log all outgoing packets
-		connection.addPacketInterceptor(new PacketInterceptor() {
-			@Override
-			public void interceptPacket(Packet packet) {
-				logger.log(Level.INFO, "Sent: {0}", packet.toXML());
-			}
-		}, new PacketTypeFilter(Message.class));
+		}, "ccs-replace-" + draining.getId());
+		connector.setDaemon(true);
+		connector.start();
+		draining.retireIfDrained();
+	}
 
-		connection.login(username, password);
+	/**
+	 * Closes all the connections, stops the pipeline and closes the database.
+	 */
+	public void disconnect() {
+		if (fanout != null) {
+			fanout.shutdown();
+		}
+		pool.close();
+		retryScheduler.stop();
+		if (pipeline != null) {
+			pipeline.shutdown();
+		}
+		if (locationTracker != null) {
+			locationTracker.stop();
+		}
+		metrics.stop();
+		database.close();
 	}
 
 	public static void main(String[] args) {
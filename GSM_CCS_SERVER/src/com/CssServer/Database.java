@@ -2,10 +2,24 @@ package com.CssServer;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -15,11 +29,48 @@ import com.CssServer.MembershipEntry;
 
 import javax.swing.text.TabExpander;
 
+/**
+ * The SQLite database of the groups and the memberships.
+ * 
+ * <p>
+ * The database runs in WAL mode. All the row writes are executed by one
+ * writer thread, see BatchWriter; the synchronous write methods queue their
+ * write and wait for it. The frequent membership updates can also be
+ * buffered, see MembershipWriteBuffer. The cache can be saved to and
+ * loaded from a snapshot file, see createTables(). The queries run on a small pool of read-only
+ * connections, which don't block and aren't blocked by the writes.
+ */
 public class Database {
-	private static final String GROUP_NAME_TABLE = "GroupName";
-	private static final String MEMBERSHIP_TABLE = "Membership";
+	static final String GROUP_NAME_TABLE = "GroupName";
+	static final String MEMBERSHIP_TABLE = "Membership";
+	public static final int BATCH_SIZE = 500;
+	public static final long BATCH_MAX_LATENCY_MILLIS = 20;
+	public static final int WRITE_QUEUE_CAPACITY = 10000;
+	public static final int READ_CONNECTIONS = 4;
+	public static final int FETCH_SIZE = 1000;
+	public static final int WRITE_BEHIND_FLUSH_SIZE = 500;
+	public static final long WRITE_BEHIND_FLUSH_MILLIS = 100;
+	public static final long SNAPSHOT_INTERVAL_MILLIS = 5 * 60 * 1000;
+	// keys read back from the tables per query when replaying the changes
+	public static final int REPLAY_CHUNK_SIZE = 500;
+	// memberships copied from the mapped snapshot per lock of the cache
+	public static final int SNAPSHOT_LOAD_CHUNK_SIZE = 5000;
+	static final String UPDATE_MEMBERSHIP = "update " + MEMBERSHIP_TABLE
+			+ " set group_id = " + DatabaseSchema.GROUP_ID_OF_NAME
+			+ ", membership = ?, latitude = ?, longitude = ? where userid = ?";
 	private Connection connection = null;
 	private Statement statement = null;
+	// guarded by this, like the connection
+	private final Map<String, PreparedStatement> preparedStatements = new HashMap<String, PreparedStatement>();
+	private final BatchWriter batchWriter;
+	private final MembershipWriteBuffer membershipBuffer;
+	private ReadConnectionPool readers = null;
+	private volatile int fetchSize = FETCH_SIZE;
+	private final GroupLocationIndex groupLocations = new GroupLocationIndex();
+	private final MembershipCache cache = new MembershipCache();
+	private File snapshotFile = null;
+	private ScheduledExecutorService snapshotExecutor = null;
+	private volatile boolean replaying = false;
 	public static final Logger logger = Logger.getLogger(Database.class
 			.getName());
 
@@ -35,16 +86,44 @@ public class Database {
 	 *            If the database file not found or is corrupted.
 	 */
 	public Database(String database_file) throws ClassNotFoundException {
+		this(database_file, BATCH_SIZE, BATCH_MAX_LATENCY_MILLIS);
+	}
+
+	/**
+	 * Opens a specified database, with the specified batching of the queued
+	 * writes.
+	 * 
+	 * @param database_file
+	 *            Full path to the database file
+	 * @param batchSize
+	 *            Maximum number of queued writes committed in one transaction.
+	 * @param maxLatencyMillis
+	 *            Maximum time a queued write waits for its batch to fill up.
+	 * @throws ClassNotFoundException
+	 *            If the database file not found or is corrupted.
+	 */
+	public Database(String database_file, int batchSize, long maxLatencyMillis)
+			throws ClassNotFoundException {
+		batchWriter = new BatchWriter(this, batchSize, maxLatencyMillis, WRITE_QUEUE_CAPACITY);
+		membershipBuffer = new MembershipWriteBuffer(batchWriter, cache,
+				Math.min(WRITE_BEHIND_FLUSH_SIZE, batchSize), WRITE_BEHIND_FLUSH_MILLIS);
 		// load the sqlite-JDBC driver using the current class loader
 		Class.forName("org.sqlite.JDBC");
+		String url = "jdbc:sqlite:" + database_file;
 		try {
-			connection = DriverManager.getConnection("jdbc:sqlite:"
-					+ database_file);
+			connection = DriverManager.getConnection(url);
 			statement = connection.createStatement();
 			statement.setQueryTimeout(30);
+			// persistent, the readers open the file in WAL mode too
+			statement.execute("PRAGMA journal_mode=WAL");
+			statement.execute("PRAGMA foreign_keys = ON");
+			DatabaseSchema.migrate(connection);
+			readers = new ReadConnectionPool(url, READ_CONNECTIONS);
 		} catch (SQLException e) {
 			e.printStackTrace();
 		} 
+		batchWriter.start();
+		membershipBuffer.start();
 	}
 
 	/**
@@ -72,67 +151,628 @@ public class Database {
 	 * Creates the groupName table in the database.
 	 * 
 	 * <p>
-	 * The table has three parameters:
-	 * 1) The group name
-	 * 2) Latitude of the location
-	 * 3) Longitude of the location
+	 * The table has four parameters:
+	 * 1) The group id, its primary key
+	 * 2) The group name, unique
+	 * 3) Latitude of the location
+	 * 4) Longitude of the location
 	 * 
+	 * <p>
+	 * The groups already in the table are loaded into the cache and the
+	 * location index.
 	 */
-	public void createGroupNameTable()
+	public synchronized void createGroupNameTable()
 	{
-		createTable(GROUP_NAME_TABLE, "(name string, latitude double, longitude double)");
-		
+		createGroupNameTableOnly();
+		loadGroupNameTable();
+	}
+	
+	private void createGroupNameTableOnly() {
+		createTable(GROUP_NAME_TABLE, DatabaseSchema.GROUP_NAME_COLUMNS);
+		executeAll(DatabaseSchema.GROUP_NAME_TRIGGERS);
+	}
+	
+	private void loadGroupNameTable() {
+		cache.clearGroups();
+		groupLocations.clear();
+		try (DatabaseCursor<GroupNameEntry> cursor = openGroupNameCursor(null, 0)) {
+			while (cursor.hasNext()) {
+				GroupNameEntry entry = cursor.next();
+				cache.putGroup(entry);
+				groupLocations.add(entry);
+			}
+		} catch (SQLException | IllegalStateException e) {
+			logger.severe("Database problems while loading " + GROUP_NAME_TABLE);
+			e.printStackTrace();
+		}
+		logger.info("Indexed the location of " + groupLocations.size() + " groups");
 		return;
 	}
 	
+	/**
+	 * Returns the location index of the groups.
+	 * 
+	 * <p>
+	 * The index is kept in sync with the GroupName table, and answers the
+	 * radius and nearest group queries without touching the database.
+	 */
+	public GroupLocationIndex getGroupLocationIndex() {
+		return groupLocations;
+	}
+	
 	/**
 	 * Creates the membership table in the database.
 	 * 
 	 * <p>
-	 * The table has four parameters:
-	 * 1) The user id
-	 * 2) The group the user belongs to
-	 * 3) The latitude of the group location
-	 * 4) The longitude of the group location
+	 * The table has five parameters:
+	 * 1) The user id, its primary key
+	 * 2) The id of the group the user belongs to
+	 * 3) The group the user belongs to, indexed
+	 * 4) The latitude of the group location
+	 * 5) The longitude of the group location
+	 * 
+	 * <p>
+	 * The memberships already in the table are loaded into the cache.
 	 */
-	public void createMembershipTable()
+	public synchronized void createMembershipTable()
 	{
-		createTable(MEMBERSHIP_TABLE, "(userid string, membership string, latitude double, longitude double)");
-		
+		createMembershipTableOnly();
+		loadMembershipTable();
+	}
+	
+	private void createMembershipTableOnly() {
+		createTable(MEMBERSHIP_TABLE, DatabaseSchema.MEMBERSHIP_COLUMNS);
+		executeAll(DatabaseSchema.MEMBERSHIP_INDEXES);
+		executeAll(DatabaseSchema.MEMBERSHIP_TRIGGERS);
+	}
+	
+	private void loadMembershipTable() {
+		cache.clearMemberships();
+		try (DatabaseCursor<MembershipEntry> cursor = openMembershipCursor(null, null, 0)) {
+			while (cursor.hasNext()) {
+				cache.putMembership(cursor.next());
+			}
+		} catch (SQLException | IllegalStateException e) {
+			logger.severe("Database problems while loading " + MEMBERSHIP_TABLE);
+			e.printStackTrace();
+		}
+		logger.info("Cached " + cache.getMembershipCount() + " memberships");
 		return;
 	}
 	
+	/**
+	 * Creates the GroupName and Membership tables, loading the cache from a
+	 * snapshot file.
+	 * 
+	 * <p>
+	 * If the snapshot can be used, the cache is restored from it and serves
+	 * the reads right away, the memberships from the mapped file; the rows
+	 * written since the snapshot are read back from the tables in the
+	 * background, then the memberships are copied into the cache. Until
+	 * then, the reads of these rows may return their state of the snapshot. Otherwise, e.g. on the
+	 * first start, the tables are loaded like createGroupNameTable() and
+	 * createMembershipTable() do.
+	 * 
+	 * <p>
+	 * A new snapshot is then written every snapshotIntervalMillis, and when
+	 * the database is closed.
+	 * 
+	 * @param _snapshotFile
+	 *            Full path to the snapshot file.
+	 * @param snapshotIntervalMillis
+	 *            Interval between two snapshots.
+	 */
+	public synchronized void createTables(String _snapshotFile, final long snapshotIntervalMillis)
+	{
+		createGroupNameTableOnly();
+		createMembershipTableOnly();
+		snapshotFile = new File(_snapshotFile);
+		snapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "db-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final Runnable snapshotTask = new Runnable() {
+			@Override
+			public void run() {
+				writeSnapshot();
+			}
+		};
+		
+		DatabaseSnapshot snapshot = null;
+		final Set<String> changedGroups = new LinkedHashSet<String>();
+		final Set<String> changedMemberships = new LinkedHashSet<String>();
+		if (snapshotFile.exists()) {
+			try {
+				snapshot = DatabaseSnapshot.read(snapshotFile);
+				if (!readChanges(snapshot.changeSeq, changedGroups, changedMemberships)) {
+					logger.info("The changes since the snapshot were pruned or a table was"
+							+ " removed, loading the tables");
+					snapshot = null;
+				}
+			} catch (IOException | SQLException e) {
+				logger.log(Level.WARNING, "Unable to use the snapshot " + snapshotFile, e);
+				snapshot = null;
+			}
+		}
+		if (snapshot == null) {
+			loadGroupNameTable();
+			loadMembershipTable();
+			snapshotExecutor.scheduleWithFixedDelay(snapshotTask, 0, snapshotIntervalMillis,
+					TimeUnit.MILLISECONDS);
+			return;
+		}
+		
+		cache.restore(snapshot);
+		groupLocations.clear();
+		for (GroupNameEntry entry : cache.getGroups()) {
+			groupLocations.add(entry);
+		}
+		for (String userid : snapshot.dirtyUserids) {
+			changedMemberships.add(userid);
+		}
+		logger.info("Loaded " + cache.getGroups().size() + " groups and " + cache.getMembershipCount()
+				+ " memberships from the snapshot, " + changedGroups.size() + " groups and "
+				+ changedMemberships.size() + " memberships changed since");
+		replaying = true;
+		cache.trackWrites(true);
+		snapshotExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					replay(changedGroups, changedMemberships);
+				} finally {
+					cache.trackWrites(false);
+				}
+				try {
+					long start = System.nanoTime();
+					int copied = cache.loadSnapshot(SNAPSHOT_LOAD_CHUNK_SIZE);
+					logger.info("Copied " + copied + " memberships from the snapshot in "
+							+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+				} finally {
+					replaying = false;
+				}
+				try {
+					snapshotExecutor.scheduleWithFixedDelay(snapshotTask, snapshotIntervalMillis,
+							snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e) {
+					// closed during the replay
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Returns true while the changes since the snapshot are being read back,
+	 * or the memberships copied from the snapshot.
+	 */
+	public boolean isReplaying() {
+		return replaying;
+	}
+	
+	/**
+	 * Writes a snapshot of the cache to the file given to createTables().
+	 * 
+	 * <p>
+	 * The cache is copied while no write is being committed, with the
+	 * sequence number of the last change. The change log is then pruned up
+	 * to it.
+	 * 
+	 * @return
+	 *        True if succeeds. False otherwise.
+	 */
+	public boolean writeSnapshot() {
+		if (snapshotFile == null || replaying) {
+			return false;
+		}
+		DatabaseSnapshot snapshot;
+		long start = System.nanoTime();
+		synchronized (this) {
+			try {
+				synchronized (cache) {
+					snapshot = cache.snapshot(getLastChangeSeq(), membershipBuffer.getPendingUserids());
+				}
+			} catch (SQLException e) {
+				logger.severe("Database problems while reading " + DatabaseSchema.CHANGE_LOG_TABLE);
+				e.printStackTrace();
+				return false;
+			}
+		}
+		try {
+			snapshot.write(snapshotFile);
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Unable to write the snapshot " + snapshotFile, e);
+			return false;
+		}
+		batchWriter.submit(pruneChangeLog(snapshot.changeSeq));
+		logger.info("Wrote a snapshot of " + snapshot.userids.length + " memberships in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+		return true;
+	}
+	
+	/**
+	 * Reads the keys of the rows changed after a snapshot.
+	 * 
+	 * @return
+	 *        False if the snapshot can't be used: the changes were pruned
+	 *        past it, or a table was removed since.
+	 */
+	private boolean readChanges(final long changeSeq, Set<String> changedGroups,
+			Set<String> changedMemberships) throws SQLException {
+		// the log is pruned up to the last snapshot, which keeps its own row
+		String query = "select seq from " + DatabaseSchema.CHANGE_LOG_TABLE + " order by seq limit 1";
+		try (Statement select = connection.createStatement();
+				ResultSet rs = select.executeQuery(query)) {
+			long first = rs.next() ? rs.getLong(1) : 0;
+			if (changeSeq == 0 ? first > 1 : first > changeSeq) {
+				return false;
+			}
+			if (changeSeq != 0 && first == 0) {
+				return false;
+			}
+		}
+		query = "select table_name, key from " + DatabaseSchema.CHANGE_LOG_TABLE
+				+ " where seq > ? order by seq";
+		try (PreparedStatement select = connection.prepareStatement(query)) {
+			select.setLong(1, changeSeq);
+			try (ResultSet rs = select.executeQuery()) {
+				while (rs.next()) {
+					String key = rs.getString(2);
+					if (key == null) {
+						return false;
+					}
+					if (GROUP_NAME_TABLE.equals(rs.getString(1))) {
+						changedGroups.add(key);
+					} else {
+						changedMemberships.add(key);
+					}
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Reads back the changed rows into the cache, a chunk at a time.
+	 * 
+	 * <p>
+	 * A chunk is read without locking the cache, then applied with it
+	 * locked. A write committed to the cache after the read started is at
+	 * least as recent as the row read, so its key is skipped; the other keys
+	 * were committed before the read and are read back with it.
+	 */
+	private void replay(Set<String> changedGroups, Set<String> changedMemberships) {
+		long start = System.nanoTime();
+		try {
+			for (List<String> names : chunks(changedGroups)) {
+				long writeSeq = cache.getWriteSeq();
+				Map<String, GroupNameEntry> rows = new HashMap<String, GroupNameEntry>();
+				try (DatabaseCursor<GroupNameEntry> cursor = openCursor(
+						"select name, latitude, longitude from " + GROUP_NAME_TABLE, "name",
+						names, GROUP_NAME_READER)) {
+					while (cursor.hasNext()) {
+						GroupNameEntry row = cursor.next();
+						rows.put(row.name, row);
+					}
+				}
+				synchronized (cache) {
+					for (String name : names) {
+						if (cache.isGroupWrittenSince(name, writeSeq)) {
+							continue;
+						}
+						GroupNameEntry cached = cache.getGroup(name);
+						if (cached != null) {
+							cache.removeGroup(cached);
+							groupLocations.remove(cached);
+						}
+						GroupNameEntry row = rows.get(name);
+						if (row != null) {
+							cache.putGroup(row);
+							groupLocations.add(row);
+						}
+					}
+				}
+			}
+			for (List<String> userids : chunks(changedMemberships)) {
+				long writeSeq = cache.getWriteSeq();
+				Map<String, MembershipEntry> rows = new HashMap<String, MembershipEntry>();
+				try (DatabaseCursor<MembershipEntry> cursor = openCursor(
+						"select userid, membership, latitude, longitude from " + MEMBERSHIP_TABLE,
+						"userid", userids, MEMBERSHIP_READER)) {
+					while (cursor.hasNext()) {
+						MembershipEntry row = cursor.next();
+						rows.put(row.userid, row);
+					}
+				}
+				synchronized (cache) {
+					for (String userid : userids) {
+						// a buffered update is skipped by committed()
+						if (!cache.isMembershipWrittenSince(userid, writeSeq)) {
+							membershipBuffer.committed(userid, rows.get(userid));
+						}
+					}
+				}
+			}
+		} catch (SQLException | IllegalStateException e) {
+			logger.severe("Database problems while replaying the changes since the snapshot,"
+					+ " the cache may be stale until the next restart");
+			e.printStackTrace();
+			return;
+		}
+		logger.info("Replayed " + (changedGroups.size() + changedMemberships.size())
+				+ " changes since the snapshot in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+	}
+	
+	private static List<List<String>> chunks(Set<String> keys) {
+		List<List<String>> chunks = new ArrayList<List<String>>();
+		List<String> chunk = null;
+		for (String key : keys) {
+			if (chunk == null || chunk.size() == REPLAY_CHUNK_SIZE) {
+				chunk = new ArrayList<String>(REPLAY_CHUNK_SIZE);
+				chunks.add(chunk);
+			}
+			chunk.add(key);
+		}
+		return chunks;
+	}
+	
+	/**
+	 * Returns the sequence number of the last change, 0 if none.
+	 */
+	private long getLastChangeSeq() throws SQLException {
+		try (ResultSet rs = statement.executeQuery("select max(seq) from "
+				+ DatabaseSchema.CHANGE_LOG_TABLE)) {
+			return rs.next() ? rs.getLong(1) : 0;
+		}
+	}
+	
+	private DatabaseWrite pruneChangeLog(final long changeSeq) {
+		return new DatabaseWrite("delete from " + DatabaseSchema.CHANGE_LOG_TABLE + " where seq < ?",
+				"prune " + DatabaseSchema.CHANGE_LOG_TABLE + " before " + changeSeq) {
+			@Override
+			void bind(PreparedStatement statement) throws SQLException {
+				statement.setLong(1, changeSeq);
+			}
+
+			@Override
+			void applied(int updateCount) {
+			}
+		};
+	}
+	
 	/**
 	 * Returns all the entries of the membership table
 	 * 
 	 * <p>
 	 * Returns a list of the table entries. The table specifies the
-	 * the current user ids and the groups they belong to.
+	 * the current user ids and the groups they belong to. Built from the
+	 * cache, the members of a group sharing its GroupNameEntry; the entries
+	 * must not be modified.
 	 * 
 	 * @return
 	 * 		returns a vector containing the MembershipEntry objects.
 	 */
 	public Vector<MembershipEntry> getMembershipTableEntries() {
-		Vector<MembershipEntry> tableEntries = new Vector<MembershipEntry>();
-		String query = "select * from " + MEMBERSHIP_TABLE;
-		try {
-			ResultSet rs = statement.executeQuery(query);
-			while(rs.next())
-			{
-				GroupNameEntry gEntry = new GroupNameEntry(rs.getString("membership"), rs.getDouble("latitude"), rs.getDouble("longitude"));
-				MembershipEntry entry = new MembershipEntry(rs.getString("userid"), gEntry);
+		return new Vector<MembershipEntry>(cache.getMemberships());
+	}
+	
+	/**
+	 * Returns the membership of a user.
+	 * 
+	 * <p>
+	 * Built from the cache.
+	 * 
+	 * @param _userid
+	 *            The id of the user.
+	 * @return
+	 * 		the MembershipEntry of the user, or null if it isn't in a group.
+	 */
+	public MembershipEntry getMembership(String _userid) {
+		return cache.getMembership(_userid);
+	}
+	
+	/**
+	 * Returns the group with the specified name.
+	 * 
+	 * <p>
+	 * Built from the cache.
+	 * 
+	 * @param _name
+	 *            The name of the group.
+	 * @return
+	 * 		the GroupNameEntry of the group, or null if there is none.
+	 */
+	public GroupNameEntry getGroup(String _name) {
+		return cache.getGroup(_name);
+	}
+	
+	/**
+	 * Sets the number of rows the cursors read from the database at a time.
+	 * 
+	 * @param _fetchSize
+	 *            Number of rows, FETCH_SIZE by default.
+	 */
+	public void setFetchSize(int _fetchSize) {
+		fetchSize = _fetchSize;
+	}
+	
+	/**
+	 * Opens a cursor over the entries of the Membership table.
+	 * 
+	 * <p>
+	 * Reads the table itself rather than the cache, one row at a time. The
+	 * cursor must be closed. To read the table page by page, pass the userid
+	 * of the last entry of a page as afterUserid to get the next one; the
+	 * pages are in userid order.
+	 * 
+	 * @param groupName
+	 *            Only the members of this group, or null for all the entries.
+	 * @param afterUserid
+	 *            Only the entries after this userid, or null to start from
+	 *            the first.
+	 * @param limit
+	 *            Maximum number of entries, or 0 for no limit.
+	 * @return
+	 * 		the cursor, or its stream() for a Stream of the entries.
+	 * @throws SQLException
+	 *            If the query can't run.
+	 */
+	public DatabaseCursor<MembershipEntry> openMembershipCursor(final String groupName,
+			final String afterUserid, final int limit) throws SQLException {
+		StringBuilder query = new StringBuilder("select userid, membership, latitude, longitude from ")
+				.append(MEMBERSHIP_TABLE);
+		if (groupName != null) {
+			query.append(" where membership = ?");
+		}
+		if (afterUserid != null) {
+			query.append(groupName != null ? " and" : " where").append(" userid > ?");
+		}
+		appendPaging(query, "userid", afterUserid != null, limit);
+		return new DatabaseCursor<MembershipEntry>(readers, query.toString(), fetchSize) {
+			@Override
+			void bind(PreparedStatement statement) throws SQLException {
+				int parameter = 1;
+				if (groupName != null) {
+					statement.setString(parameter++, groupName);
+				}
+				if (afterUserid != null) {
+					statement.setString(parameter++, afterUserid);
+				}
+				if (limit > 0) {
+					statement.setInt(parameter++, limit);
+				}
+			}
 
-				tableEntries.addElement(entry);
+			@Override
+			MembershipEntry read(ResultSet row) throws SQLException {
+				return MEMBERSHIP_READER.read(row);
+			}
+		};
+	}
+	
+	/**
+	 * Opens a cursor over the entries of the GroupName table.
+	 * 
+	 * <p>
+	 * Reads the table itself rather than the cache, one row at a time. The
+	 * cursor must be closed. Paged like openMembershipCursor(), in name order.
+	 * 
+	 * @param afterName
+	 *            Only the groups after this name, or null to start from the
+	 *            first.
+	 * @param limit
+	 *            Maximum number of entries, or 0 for no limit.
+	 * @return
+	 * 		the cursor, or its stream() for a Stream of the entries.
+	 * @throws SQLException
+	 *            If the query can't run.
+	 */
+	public DatabaseCursor<GroupNameEntry> openGroupNameCursor(final String afterName,
+			final int limit) throws SQLException {
+		StringBuilder query = new StringBuilder("select name, latitude, longitude from ")
+				.append(GROUP_NAME_TABLE);
+		if (afterName != null) {
+			query.append(" where name > ?");
+		}
+		appendPaging(query, "name", afterName != null, limit);
+		return new DatabaseCursor<GroupNameEntry>(readers, query.toString(), fetchSize) {
+			@Override
+			void bind(PreparedStatement statement) throws SQLException {
+				int parameter = 1;
+				if (afterName != null) {
+					statement.setString(parameter++, afterName);
+				}
+				if (limit > 0) {
+					statement.setInt(parameter++, limit);
+				}
 			}
 
-		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			logger.severe("Database problems while executing query in executeQuery. Query: "
-					+ query);
-			e.printStackTrace();
-		} 
-		
-		return tableEntries;
+			@Override
+			GroupNameEntry read(ResultSet row) throws SQLException {
+				return GROUP_NAME_READER.read(row);
+			}
+		};
+	}
+	
+	/**
+	 * Reads an entry from a row.
+	 */
+	private interface RowReader<T> {
+		T read(ResultSet row) throws SQLException;
+	}
+	
+	private static final RowReader<MembershipEntry> MEMBERSHIP_READER = new RowReader<MembershipEntry>() {
+		@Override
+		public MembershipEntry read(ResultSet row) throws SQLException {
+			GroupNameEntry gEntry = new GroupNameEntry(row.getString("membership"),
+					row.getDouble("latitude"), row.getDouble("longitude"));
+			return new MembershipEntry(row.getString("userid"), gEntry);
+		}
+	};
+	
+	private static final RowReader<GroupNameEntry> GROUP_NAME_READER = new RowReader<GroupNameEntry>() {
+		@Override
+		public GroupNameEntry read(ResultSet row) throws SQLException {
+			return new GroupNameEntry(row.getString("name"), row.getDouble("latitude"),
+					row.getDouble("longitude"));
+		}
+	};
+	
+	/**
+	 * Opens a cursor over the rows of a query whose key is in a list.
+	 */
+	private <T> DatabaseCursor<T> openCursor(String select, String key, final List<String> keys,
+			final RowReader<T> reader) throws SQLException {
+		StringBuilder query = new StringBuilder(select).append(" where ").append(key).append(" in (");
+		for (int i = 0; i < keys.size(); i++) {
+			query.append(i == 0 ? "?" : ", ?");
+		}
+		query.append(")");
+		return new DatabaseCursor<T>(readers, query.toString(), fetchSize) {
+			@Override
+			void bind(PreparedStatement statement) throws SQLException {
+				for (int i = 0; i < keys.size(); i++) {
+					statement.setString(i + 1, keys.get(i));
+				}
+			}
+
+			@Override
+			T read(ResultSet row) throws SQLException {
+				return reader.read(row);
+			}
+		};
+	}
+	
+	/**
+	 * Orders a query by its key when it is paged, and limits it.
+	 */
+	private static void appendPaging(StringBuilder query, String key, boolean after, int limit) {
+		if (after || limit > 0) {
+			query.append(" order by ").append(key);
+		}
+		if (limit > 0) {
+			query.append(" limit ?");
+		}
+	}
+	
+	/**
+	 * Returns the user ids of the members of a group.
+	 * 
+	 * <p>
+	 * Returns a list of the userid of the Membership table entries
+	 * belonging to the specified group. Read from the cache.
+	 * 
+	 * @param groupName
+	 *            The name of the group.
+	 * @return
+	 * 		returns a vector containing the user ids.
+	 */
+	public Vector<String> getMembersOfGroup(String groupName) {
+		return new Vector<String>(cache.getMembersOfGroup(groupName));
 	}
 	
 	/**
@@ -140,30 +780,14 @@ public class Database {
 	 * 
 	 * <p>
 	 * Returns a list of the table entries. The table specifies the
-	 * group names and the associated latitude and longitudes.
+	 * group names and the associated latitude and longitudes. Built from the
+	 * cache.
 	 * 
 	 * @return
 	 * 		returns a vector containing the GourpNameEntry objects.
 	 */
 	public Vector<GroupNameEntry> getGroupNameTableEntries() {
-		Vector<GroupNameEntry> tableEntries = new Vector<GroupNameEntry>();
-		String query = "select * from " + GROUP_NAME_TABLE;
-		try {
-			ResultSet rs = statement.executeQuery(query);
-			while(rs.next())
-			{
-				GroupNameEntry entry = new GroupNameEntry(rs.getString("name"), rs.getDouble("latitude"), rs.getDouble("longitude") );
-				tableEntries.addElement(entry);
-			}
-
-		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			logger.severe("Database problems while executing query in executeQuery. Query: "
-					+ query);
-			e.printStackTrace();
-		} 
-		
-		return tableEntries;
+		return new Vector<GroupNameEntry>(cache.getGroups());
 	}
 	
 	/**
@@ -178,10 +802,23 @@ public class Database {
 	 *        True is succeeds. False otherwise.
 	 */
 	public boolean addEntryToGroupNameTable(GroupNameEntry gEntry) {
-		String entry = "('" + gEntry.name + "', " + Double.toString(gEntry.latitude)
-				+ ", " + Double.toString(gEntry.longitude) + ")";
-		
-		return addEntryToTable(entry, GROUP_NAME_TABLE);
+		return write(addGroup(gEntry));
+	}
+	
+	/**
+	 * Queues the addition of the specified entry to the GroupName table.
+	 * 
+	 * <p>
+	 * The entry is written with other queued writes in one transaction, see
+	 * addEntryToGroupNameTable().
+	 * 
+	 * @param gEntry
+	 *            GroupNameEntry containing the information of the group to be added.
+	 * @return
+	 *        The write, to wait for its completion.
+	 */
+	public DatabaseWrite queueAddEntryToGroupNameTable(GroupNameEntry gEntry) {
+		return batchWriter.submit(addGroup(gEntry));
 	}
 	
 	/**
@@ -196,12 +833,23 @@ public class Database {
 	 *        True if succeeds. False otherwise.
 	 */
 	public boolean addEntryToMembershipTable(MembershipEntry mEntry) {
-		String entry = "('" + mEntry.userid + "', " +
-			           "'"+ mEntry.membership.name + "', " + 
-				       Double.toString(mEntry.membership.latitude) + ", " + 
-			           Double.toString(mEntry.membership.longitude) + ")";
-		
-		return addEntryToTable(entry, MEMBERSHIP_TABLE);
+		return write(mEntry.userid, addMembership(mEntry));
+	}
+	
+	/**
+	 * Queues the addition of the specified entry to the Membership table.
+	 * 
+	 * <p>
+	 * The entry is written with other queued writes in one transaction, see
+	 * addEntryToMembershipTable().
+	 * 
+	 * @param mEntry
+	 *        The MemeberShipEntry containing the userid, and the group it belongs to.
+	 * @return
+	 *        The write, to wait for its completion.
+	 */
+	public DatabaseWrite queueAddEntryToMembershipTable(MembershipEntry mEntry) {
+		return membershipBuffer.submit(mEntry.userid, addMembership(mEntry));
 	}
 	
 	/**
@@ -217,10 +865,23 @@ public class Database {
 	 *        True if succeeds. False otherwise.
 	 */
 	public boolean removeEntryFromGroupNameTable(GroupNameEntry gEntry) {
-		String entry = "name = '" + gEntry.name + "'" + " AND latitude = "
-				+ gEntry.latitude + " AND longitude = " + gEntry.longitude;
+		return write(removeGroup(gEntry));
+	}
 	
-		return removeEntryFromTable(entry, GROUP_NAME_TABLE);
+	/**
+	 * Queues the removal of the specified entry from the GroupName table.
+	 * 
+	 * <p>
+	 * The entry is removed with other queued writes in one transaction, see
+	 * removeEntryFromGroupNameTable().
+	 * 
+	 * @param gEntry
+	 *            The GroupNameEntry class describing the group to be removed.
+	 * @return
+	 *        The write, to wait for its completion.
+	 */
+	public DatabaseWrite queueRemoveEntryFromGroupNameTable(GroupNameEntry gEntry) {
+		return batchWriter.submit(removeGroup(gEntry));
 	}
 	
 	/**
@@ -235,9 +896,23 @@ public class Database {
 	 *        True if succeeds. False otherwise.
 	 */
 	public boolean removeEntryFromMembershipTable(String _userid) {
-		String entry = "userid = '" + _userid + "'";
-		
-		return removeEntryFromTable(entry, MEMBERSHIP_TABLE);
+		return write(_userid, removeMembership(_userid));
+	}
+	
+	/**
+	 * Queues the removal of the specified entry from the Membership table.
+	 * 
+	 * <p>
+	 * The entry is removed with other queued writes in one transaction, see
+	 * removeEntryFromMembershipTable().
+	 * 
+	 * @param _userid
+	 *            The entry to be removed.
+	 * @return
+	 *        The write, to wait for its completion.
+	 */
+	public DatabaseWrite queueRemoveEntryFromMembershipTable(String _userid) {
+		return membershipBuffer.submit(_userid, removeMembership(_userid));
 	}
 	
 	/**
@@ -248,9 +923,11 @@ public class Database {
 	 * for testing purposes.
 	 * 
 	 */
-	public void removeGroupNameTable()
+	public synchronized void removeGroupNameTable()
 	{
 		removeTable(GROUP_NAME_TABLE);
+		cache.clearGroups();
+		groupLocations.clear();
 		return;
 	}
 	
@@ -261,10 +938,20 @@ public class Database {
 	 * Should never be called. This helper method is provided
 	 * for testing purposes.
 	 * 
+	 * <p>
+	 * Locks the write-behind buffer before the Database, in the order of a
+	 * flush: the buffer can wait on the writer, which needs the Database.
+	 * 
 	 */
 	public void removeMembershipTable()
 	{
-		removeTable(MEMBERSHIP_TABLE);
+		synchronized (membershipBuffer) {
+			synchronized (this) {
+				removeTable(MEMBERSHIP_TABLE);
+				membershipBuffer.clear();
+				cache.clearMemberships();
+			}
+		}
 		return;
 	}
 	
@@ -287,90 +974,426 @@ public class Database {
 	 */
 	public boolean updateEntryOfMembershipTable(String _userid, String _groupMembership,
 			double _latitude, double _longitude) {
-		String query = "update " + MEMBERSHIP_TABLE + " set membership = " 
-				     + "'" + _groupMembership + "', latitude = " + Double.toString(_latitude)
-				     + ", longitude = " + Double.toString(_longitude) + " where userid = '" + _userid + "'";
-		try {
-			statement.executeUpdate(query);
-		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			logger.severe("Error while updating. " + query + " of " + MEMBERSHIP_TABLE);
-			return false;
+		return write(_userid, updateMembership(_userid, _groupMembership, _latitude, _longitude));
+	}
+	
+	/**
+	 * Queues the update of the specified entry of the Membership table.
+	 * 
+	 * <p>
+	 * The entry is updated with other queued writes in one transaction, see
+	 * updateEntryOfMembershipTable().
+	 * 
+	 * @param _userid
+	 *            The id of the user to be updated
+	 * @param _groupMembership
+	 *            The new group that the user belongs to
+	 * @param _latitude
+	 *            The new latitude of the group location
+	 * @param _longitude
+	 * 			  The new longitude of the group location
+	 * @return
+	 *        The write, to wait for its completion.
+	 */
+	public DatabaseWrite queueUpdateEntryOfMembershipTable(String _userid, String _groupMembership,
+			double _latitude, double _longitude) {
+		return membershipBuffer.submit(_userid,
+				updateMembership(_userid, _groupMembership, _latitude, _longitude));
+	}
+	
+	/**
+	 * Buffers the update of the specified entry of the Membership table.
+	 * 
+	 * <p>
+	 * Only the latest buffered update of a user is written, with the other
+	 * buffered updates, within WRITE_BEHIND_FLUSH_MILLIS. The new membership
+	 * is read back right away: getMembership() and getMembersOfGroup()
+	 * return it before it is written.
+	 * 
+	 * @param _userid
+	 *            The id of the user to be updated
+	 * @param _groupMembership
+	 *            The new group that the user belongs to
+	 * @param _latitude
+	 *            The new latitude of the group location
+	 * @param _longitude
+	 * 			  The new longitude of the group location
+	 * @return
+	 *        True if buffered. False if the user is not in the table.
+	 */
+	public boolean bufferUpdateEntryOfMembershipTable(String _userid, String _groupMembership,
+			double _latitude, double _longitude) {
+		return membershipBuffer.put(new MembershipEntry(_userid,
+				new GroupNameEntry(_groupMembership, _latitude, _longitude)));
+	}
+	
+	/**
+	 * Writes the buffered membership updates now, and waits for them.
+	 * 
+	 * @return
+	 *        True if succeeds. False otherwise.
+	 */
+	public boolean flushMembershipUpdates() {
+		boolean succeeded = true;
+		for (DatabaseWrite write : membershipBuffer.flush()) {
+			write.awaited = true;
+			succeeded &= await(write);
 		}
-		return true;
+		return succeeded;
+	}
+	
+	/**
+	 * Returns the number of buffered membership updates replaced by a later
+	 * one before they were written.
+	 */
+	public long getCoalescedMembershipUpdates() {
+		return membershipBuffer.getCoalescedCount();
+	}
+	
+	/**
+	 * Returns the number of users whose buffered membership update isn't
+	 * committed yet.
+	 */
+	public int getPendingMembershipUpdateCount() {
+		return membershipBuffer.getPendingCount();
+	}
+	
+	/**
+	 * Returns the number of writes waiting for their batch.
+	 */
+	public int getWriteQueueDepth() {
+		return batchWriter.getQueueDepth();
+	}
+	
+	/**
+	 * Returns the time from the submission of a write to its commit.
+	 * 
+	 * <p>
+	 * The reads are served by the cache and aren't timed.
+	 */
+	public LatencySummary getWriteLatency() {
+		return batchWriter.writeLatency.summarize();
+	}
+	
+	/**
+	 * Returns the time taken to execute and commit a batch of writes.
+	 */
+	public LatencySummary getCommitTime() {
+		return batchWriter.commitTime.summarize();
 	}
 	
 	/**
 	 * Database closure.
 	 * 
 	 * <p>
-	 * Properly closes the database connection.
+	 * Commits the queued writes and properly closes the database connections.
 	 */
 	public void close() {
-		try {
-			if (connection != null) {
-				logger.info("Closing the database");
-				connection.close();
+		membershipBuffer.stop();
+		if (snapshotExecutor != null) {
+			snapshotExecutor.shutdown();
+			try {
+				snapshotExecutor.awaitTermination(60, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		batchWriter.stop();
+		// the writer is stopped, the change log is pruned by this thread
+		writeSnapshot();
+		if (readers != null) {
+			readers.close();
+		}
+		synchronized (this) {
+			closePreparedStatements();
+			try {
+				if (connection != null) {
+					logger.info("Closing the database");
+					connection.close();
+				}
+			} catch (SQLException e) {
+				e.printStackTrace();
 			}
-		} catch (SQLException e) {
-			e.printStackTrace();
 		}
 
 		return;
 	}
 	
 	/**
-	 * Adds the specified entry to the table.
+	 * Executes a batch of writes in one transaction.
 	 * 
 	 * <p>
-	 * Returns false if table doesn't exist or unsuccessful. True otherwise.
+	 * Consecutive writes using the same statement are sent as one JDBC
+	 * batch. If the transaction fails, it is rolled back and the writes are
+	 * executed one by one, so that only the faulty ones fail.
 	 * 
-	 * @param entry
-	 *            The entry to be added
-	 * @param tableName
-	 *            The table to add the entry to
-	 * @return
-	 *        True is succeeds. False otherwise.
+	 * @param writes
+	 *            The writes, executed in order.
 	 */
-	private boolean addEntryToTable(String entry, String tableName) {
-		String query = "insert into " + tableName + " values"+ entry;
+	synchronized void executeBatch(List<DatabaseWrite> writes) {
+		int[] counts = new int[writes.size()];
 		try {
-			statement.executeUpdate(query);
+			connection.setAutoCommit(false);
+			PreparedStatement batch = null;
+			int batchStart = 0;
+			for (int i = 0; i < writes.size(); i++) {
+				DatabaseWrite write = writes.get(i);
+				if (batch == null || !write.sql.equals(writes.get(batchStart).sql)) {
+					if (batch != null) {
+						copyCounts(batch.executeBatch(), counts, batchStart);
+					}
+					batch = prepare(write.sql);
+					batchStart = i;
+				}
+				write.bind(batch);
+				batch.addBatch();
+			}
+			if (batch != null) {
+				copyCounts(batch.executeBatch(), counts, batchStart);
+			}
+			connection.commit();
 		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			logger.severe("Error while adding " + entry + " to " + tableName);
-			return false;
+			logger.log(Level.WARNING, "Batch of " + writes.size()
+					+ " writes failed, writing them one by one", e);
+			try {
+				connection.rollback();
+			} catch (SQLException rollbackException) {
+				logger.log(Level.SEVERE, "Rollback failed", rollbackException);
+			}
+			// sqlite-jdbc can't reuse a statement that failed, prepare them again
+			closePreparedStatements();
+			setAutoCommit();
+			for (DatabaseWrite write : writes) {
+				execute(write);
+			}
+			return;
+		}
+		setAutoCommit();
+		for (int i = 0; i < writes.size(); i++) {
+			writes.get(i).applied(counts[i]);
+			writes.get(i).complete(true);
 		}
-		return true;
 	}
 	
 	/**
-	 * Removes an entry from the specified table, if entry exists.
+	 * Queues a write and waits for it.
 	 * 
-	 * <p>
-	 * Returns false if table doesn't exist, the entry is missing or 
-	 * other general issues occur.
+	 * @return
+	 *        True if succeeds. False if it failed, or if the thread was
+	 *        interrupted before it completed.
+	 */
+	private boolean write(DatabaseWrite write) {
+		write.awaited = true;
+		return await(batchWriter.submit(write));
+	}
+	
+	/**
+	 * Queues a write of the membership of a user and waits for it.
+	 */
+	private boolean write(String userid, DatabaseWrite write) {
+		write.awaited = true;
+		return await(membershipBuffer.submit(userid, write));
+	}
+	
+	/**
+	 * Waits for a write.
 	 * 
-	 * @param entry
-	 *            Item to be removed
-	 * @param tableName
-	 *            Table to remove the entry from.
-	 */	
-	private boolean removeEntryFromTable(String entry, String tableName) {
-		String query = "delete from " + tableName + " where " + entry;
+	 * @return
+	 *        True if succeeds. False if it failed, or if the thread was
+	 *        interrupted before it completed.
+	 */
+	private static boolean await(DatabaseWrite write) {
 		try {
-			statement.executeUpdate(query);
+			return write.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * Executes a single write, in its own transaction.
+	 * 
+	 * @return
+	 *        True if succeeds. False otherwise.
+	 */
+	private synchronized boolean execute(DatabaseWrite write) {
+		try {
+			PreparedStatement prepared = prepare(write.sql);
+			write.bind(prepared);
+			write.applied(prepared.executeUpdate());
 		} catch (SQLException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
-			logger.severe("Error while removing " + entry + " from " + tableName);
+			logger.severe("Error while executing " + write);
+			// sqlite-jdbc can't reuse a statement that failed
+			closePreparedStatement(write.sql);
+			write.complete(false);
 			return false;
 		}
+		write.complete(true);
 		return true;
 	}
 	
+	private DatabaseWrite addGroup(final GroupNameEntry gEntry) {
+		return new DatabaseWrite("insert into " + GROUP_NAME_TABLE
+				+ " (name, latitude, longitude) values (?, ?, ?)",
+				"add " + gEntry.name + " to " + GROUP_NAME_TABLE) {
+			@Override
+			void bind(PreparedStatement statement) throws SQLException {
+				statement.setString(1, gEntry.name);
+				statement.setDouble(2, gEntry.latitude);
+				statement.setDouble(3, gEntry.longitude);
+			}
+
+			@Override
+			void applied(int updateCount) {
+				// like a replay, see replay()
+				synchronized (cache) {
+					cache.putGroup(gEntry);
+					groupLocations.add(gEntry);
+				}
+			}
+		};
+	}
+	
+	private DatabaseWrite removeGroup(final GroupNameEntry gEntry) {
+		return new DatabaseWrite("delete from " + GROUP_NAME_TABLE
+				+ " where name = ? AND latitude = ? AND longitude = ?",
+				"remove " + gEntry.name + " from " + GROUP_NAME_TABLE) {
+			@Override
+			void bind(PreparedStatement statement) throws SQLException {
+				statement.setString(1, gEntry.name);
+				statement.setDouble(2, gEntry.latitude);
+				statement.setDouble(3, gEntry.longitude);
+			}
+
+			@Override
+			void applied(int updateCount) {
+				synchronized (cache) {
+					cache.removeGroup(gEntry);
+					groupLocations.remove(gEntry);
+				}
+			}
+		};
+	}
+	
+	private DatabaseWrite addMembership(final MembershipEntry mEntry) {
+		return new DatabaseWrite("insert into " + MEMBERSHIP_TABLE
+				+ " (userid, group_id, membership, latitude, longitude) values (?, "
+				+ DatabaseSchema.GROUP_ID_OF_NAME + ", ?, ?, ?)",
+				"add " + mEntry.userid + " to " + MEMBERSHIP_TABLE) {
+			@Override
+			void bind(PreparedStatement statement) throws SQLException {
+				statement.setString(1, mEntry.userid);
+				statement.setString(2, mEntry.membership.name);
+				statement.setString(3, mEntry.membership.name);
+				statement.setDouble(4, mEntry.membership.latitude);
+				statement.setDouble(5, mEntry.membership.longitude);
+			}
+
+			@Override
+			void applied(int updateCount) {
+				membershipBuffer.committed(mEntry.userid, mEntry);
+			}
+		};
+	}
+	
+	private DatabaseWrite updateMembership(final String _userid, final String _groupMembership,
+			final double _latitude, final double _longitude) {
+		return new DatabaseWrite(UPDATE_MEMBERSHIP, "update " + _userid + " of " + MEMBERSHIP_TABLE) {
+			@Override
+			void bind(PreparedStatement statement) throws SQLException {
+				bindUpdateMembership(statement, _userid, _groupMembership, _latitude, _longitude);
+			}
+
+			@Override
+			void applied(int updateCount) {
+				// nothing to update if the user isn't in the table
+				if (updateCount != 0) {
+					membershipBuffer.committed(_userid, new MembershipEntry(_userid,
+							new GroupNameEntry(_groupMembership, _latitude, _longitude)));
+				}
+			}
+		};
+	}
+	
+	private DatabaseWrite removeMembership(final String _userid) {
+		return new DatabaseWrite("delete from " + MEMBERSHIP_TABLE + " where userid = ?",
+				"remove " + _userid + " from " + MEMBERSHIP_TABLE) {
+			@Override
+			void bind(PreparedStatement statement) throws SQLException {
+				statement.setString(1, _userid);
+			}
+
+			@Override
+			void applied(int updateCount) {
+				membershipBuffer.committed(_userid, null);
+			}
+		};
+	}
+	
+	/**
+	 * Sets the parameters of UPDATE_MEMBERSHIP.
+	 */
+	static void bindUpdateMembership(PreparedStatement statement, String _userid,
+			String _groupMembership, double _latitude, double _longitude) throws SQLException {
+		statement.setString(1, _groupMembership);
+		statement.setString(2, _groupMembership);
+		statement.setDouble(3, _latitude);
+		statement.setDouble(4, _longitude);
+		statement.setString(5, _userid);
+	}
+	
+	/**
+	 * Returns the cached prepared statement of a query, preparing it the
+	 * first time.
+	 */
+	private PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement prepared = preparedStatements.get(sql);
+		if (prepared == null) {
+			prepared = connection.prepareStatement(sql);
+			preparedStatements.put(sql, prepared);
+		}
+		return prepared;
+	}
+	
+	private void closePreparedStatement(String sql) {
+		PreparedStatement prepared = preparedStatements.remove(sql);
+		if (prepared != null) {
+			try {
+				prepared.close();
+			} catch (SQLException e) {
+				logger.log(Level.WARNING, "Unable to close a prepared statement", e);
+			}
+		}
+	}
+	
+	/**
+	 * Closes the cached prepared statements. Called when the schema changes.
+	 */
+	private void closePreparedStatements() {
+		for (PreparedStatement prepared : preparedStatements.values()) {
+			try {
+				prepared.close();
+			} catch (SQLException e) {
+				logger.log(Level.WARNING, "Unable to close a prepared statement", e);
+			}
+		}
+		preparedStatements.clear();
+	}
+	
+	private void setAutoCommit() {
+		try {
+			connection.setAutoCommit(true);
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "Unable to go back to autocommit", e);
+		}
+	}
+	
+	private static void copyCounts(int[] batchCounts, int[] counts, int start) {
+		System.arraycopy(batchCounts, 0, counts, start, batchCounts.length);
+	}
+	
 	/**
 	 * Creates a new table in the database.
 	 * 
@@ -401,6 +1424,20 @@ public class Database {
 		return;
 	}
 	
+	/**
+	 * Executes DDL statements, logging the ones that fail.
+	 */
+	private void executeAll(String[] statements) {
+		for (String ddl : statements) {
+			try {
+				statement.executeUpdate(ddl);
+			} catch (SQLException e) {
+				logger.severe("Error when executing " + ddl);
+				e.printStackTrace();
+			}
+		}
+	}
+	
 	/**
 	 * Removes a table from the database.
 	 * 
@@ -412,8 +1449,12 @@ public class Database {
 	 */
 	private void removeTable(String tableName) {
 		String query = "drop table if exists " + tableName;
+		closePreparedStatements();
 		try {
 			statement.executeUpdate(query);
+			// the snapshots taken before are stale
+			statement.executeUpdate("insert into " + DatabaseSchema.CHANGE_LOG_TABLE
+					+ " (table_name, key) values ('" + tableName + "', NULL)");
 		} catch (SQLException e) {
 			// TODO Auto-generated catch block
 			logger.severe("Error when removing the table " + tableName );
@@ -0,0 +1,132 @@
+package com.CssServer;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Rows of a query, read one at a time.
+ *
+ * <p>
+ * The rows are read from the result set as the cursor advances, fetchSize
+ * at a time, so a whole table can be processed in constant memory. The
+ * cursor holds one of the read connections of the Database until it is
+ * closed: it must always be closed, e.g. with a try-with-resources. It is
+ * closed on its own once the last row is read.
+ *
+ * <p>
+ * Errors while reading are thrown as IllegalStateException.
+ */
+public abstract class DatabaseCursor<T> implements Iterator<T>, AutoCloseable {
+	private final ReadConnectionPool readers;
+	private Connection connection;
+	private PreparedStatement statement;
+	private ResultSet rs;
+	private boolean hasRow = false;
+	private boolean closed = false;
+
+	/**
+	 * Runs the query. The statement parameters are set by bind().
+	 */
+	DatabaseCursor(ReadConnectionPool readers, String query, int fetchSize) throws SQLException {
+		this.readers = readers;
+		connection = readers.acquire();
+		try {
+			statement = connection.prepareStatement(query);
+			statement.setFetchSize(fetchSize);
+			bind(statement);
+			rs = statement.executeQuery();
+		} catch (SQLException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sets the parameters of the query.
+	 */
+	abstract void bind(PreparedStatement statement) throws SQLException;
+
+	/**
+	 * Reads the current row.
+	 */
+	abstract T read(ResultSet row) throws SQLException;
+
+	@Override
+	public boolean hasNext() {
+		if (closed) {
+			return false;
+		}
+		if (!hasRow) {
+			try {
+				hasRow = rs.next();
+			} catch (SQLException e) {
+				close();
+				throw new IllegalStateException("Unable to read the next row", e);
+			}
+			if (!hasRow) {
+				close();
+			}
+		}
+		return hasRow;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		hasRow = false;
+		try {
+			return read(rs);
+		} catch (SQLException e) {
+			close();
+			throw new IllegalStateException("Unable to read a row", e);
+		}
+	}
+
+	/**
+	 * Returns the remaining rows as a sequential stream. Closing the stream
+	 * closes the cursor.
+	 */
+	public Stream<T> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this,
+				Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(new Runnable() {
+					@Override
+					public void run() {
+						close();
+					}
+				});
+	}
+
+	/**
+	 * Releases the read connection. Can be called more than once.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		hasRow = false;
+		try {
+			if (rs != null) {
+				rs.close();
+			}
+			if (statement != null) {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			Database.logger.warning("Unable to close a cursor: " + e.getMessage());
+		} finally {
+			readers.release(connection);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package com.CssServer;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+/**
+ * Layout of the database tables, and its upgrades.
+ *
+ * <p>
+ * The version of the layout is stored in the user_version of the database
+ * file. Opening a database of an older version migrates its tables in one
+ * transaction:
+ * 0) the original tables, without keys nor indexes
+ * 1) an integer primary key and a unique name on GroupName; userid as the
+ *    primary key of Membership, with the id of its group and an index on
+ *    the group name
+ * 2) the ChangeLog table, filled by triggers with the key of every row
+ *    written, see DatabaseSnapshot
+ */
+class DatabaseSchema {
+	private static final Logger logger = Database.logger;
+	static final int VERSION = 2;
+	static final String CHANGE_LOG_TABLE = "ChangeLog";
+
+	static final String GROUP_NAME_COLUMNS = "(id INTEGER PRIMARY KEY, name TEXT NOT NULL UNIQUE,"
+			+ " latitude REAL, longitude REAL)";
+	static final String MEMBERSHIP_COLUMNS = "(userid TEXT PRIMARY KEY,"
+			+ " group_id INTEGER REFERENCES " + Database.GROUP_NAME_TABLE + "(id) ON DELETE SET NULL,"
+			+ " membership TEXT, latitude REAL, longitude REAL)";
+	static final String[] MEMBERSHIP_INDEXES = {
+			"create index if not exists " + Database.MEMBERSHIP_TABLE + "_membership on "
+					+ Database.MEMBERSHIP_TABLE + " (membership)",
+			"create index if not exists " + Database.MEMBERSHIP_TABLE + "_group_id on "
+					+ Database.MEMBERSHIP_TABLE + " (group_id)" };
+	// a null key means the whole table was removed
+	static final String CHANGE_LOG_COLUMNS = "(seq INTEGER PRIMARY KEY AUTOINCREMENT,"
+			+ " table_name TEXT NOT NULL, key TEXT)";
+	static final String[] GROUP_NAME_TRIGGERS = changeLogTriggers(Database.GROUP_NAME_TABLE, "name");
+	static final String[] MEMBERSHIP_TRIGGERS = changeLogTriggers(Database.MEMBERSHIP_TABLE, "userid");
+	// id of the group of a membership, bound to the group name
+	static final String GROUP_ID_OF_NAME = "(select id from " + Database.GROUP_NAME_TABLE
+			+ " where name = ?)";
+
+	/**
+	 * Brings the tables of a database to the current layout.
+	 *
+	 * <p>
+	 * Does nothing if the database is up to date. Missing tables are left to
+	 * createGroupNameTable() and createMembershipTable().
+	 *
+	 * @param connection
+	 *            The write connection, in autocommit mode.
+	 */
+	static void migrate(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			int version = getVersion(statement);
+			if (version >= VERSION) {
+				return;
+			}
+			logger.info("Migrating the database from version " + version + " to " + VERSION);
+			connection.setAutoCommit(false);
+			try {
+				if (version < 1) {
+					migrateToVersion1(connection, statement);
+				}
+				if (version < 2) {
+					migrateToVersion2(connection, statement);
+				}
+				statement.execute("PRAGMA user_version = " + VERSION);
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		}
+	}
+
+	/**
+	 * Adds the keys and the indexes.
+	 *
+	 * <p>
+	 * The original tables accepted duplicates; the last row of a group name
+	 * or of a userid is the one kept. The columns were declared as "string",
+	 * i.e. with a numeric affinity, so the text is restored with a cast.
+	 */
+	private static void migrateToVersion1(Connection connection, Statement statement)
+			throws SQLException {
+		String groupName = Database.GROUP_NAME_TABLE;
+		String oldGroupName = groupName + "_v0";
+		if (tableExists(connection, groupName)) {
+			statement.execute("alter table " + groupName + " rename to " + oldGroupName);
+			statement.execute("create table " + groupName + " " + GROUP_NAME_COLUMNS);
+			int rows = statement.executeUpdate("insert into " + groupName
+					+ " (name, latitude, longitude)"
+					+ " select cast(name as text), latitude, longitude from " + oldGroupName
+					+ " where rowid in (select max(rowid) from " + oldGroupName + " group by name)");
+			statement.execute("drop table " + oldGroupName);
+			logger.info("Migrated " + rows + " rows of " + groupName);
+		}
+
+		String membership = Database.MEMBERSHIP_TABLE;
+		String oldMembership = membership + "_v0";
+		if (tableExists(connection, membership)) {
+			statement.execute("alter table " + membership + " rename to " + oldMembership);
+			statement.execute("create table " + membership + " " + MEMBERSHIP_COLUMNS);
+			int rows = statement.executeUpdate("insert into " + membership
+					+ " (userid, group_id, membership, latitude, longitude)"
+					+ " select cast(m.userid as text),"
+					+ " (select id from " + groupName + " g where g.name = cast(m.membership as text)),"
+					+ " cast(m.membership as text), m.latitude, m.longitude from " + oldMembership + " m"
+					+ " where m.rowid in (select max(rowid) from " + oldMembership + " group by userid)");
+			statement.execute("drop table " + oldMembership);
+			for (String index : MEMBERSHIP_INDEXES) {
+				statement.execute(index);
+			}
+			logger.info("Migrated " + rows + " rows of " + membership);
+		}
+	}
+
+	/**
+	 * Adds the ChangeLog table and its triggers.
+	 */
+	private static void migrateToVersion2(Connection connection, Statement statement)
+			throws SQLException {
+		createChangeLog(statement);
+		if (tableExists(connection, Database.GROUP_NAME_TABLE)) {
+			for (String trigger : GROUP_NAME_TRIGGERS) {
+				statement.execute(trigger);
+			}
+		}
+		if (tableExists(connection, Database.MEMBERSHIP_TABLE)) {
+			for (String trigger : MEMBERSHIP_TRIGGERS) {
+				statement.execute(trigger);
+			}
+		}
+	}
+
+	static void createChangeLog(Statement statement) throws SQLException {
+		statement.execute("create table if not exists " + CHANGE_LOG_TABLE + " " + CHANGE_LOG_COLUMNS);
+	}
+
+	/**
+	 * Returns the triggers logging the key of the rows written to a table.
+	 * The keys are never updated, so an update only logs the new one.
+	 */
+	private static String[] changeLogTriggers(String tableName, String keyColumn) {
+		String[] events = { "insert", "update", "delete" };
+		String[] triggers = new String[events.length];
+		for (int i = 0; i < events.length; i++) {
+			triggers[i] = "create trigger if not exists " + tableName + "_log_" + events[i]
+					+ " after " + events[i] + " on " + tableName + " begin insert into "
+					+ CHANGE_LOG_TABLE + " (table_name, key) values ('" + tableName + "', "
+					+ (events[i].equals("delete") ? "old." : "new.") + keyColumn + "); end";
+		}
+		return triggers;
+	}
+
+	private static int getVersion(Statement statement) throws SQLException {
+		try (ResultSet rs = statement.executeQuery("PRAGMA user_version")) {
+			return rs.next() ? rs.getInt(1) : 0;
+		}
+	}
+
+	private static boolean tableExists(Connection connection, String tableName) throws SQLException {
+		try (PreparedStatement select = connection.prepareStatement(
+				"select name from sqlite_master where type = 'table' AND name = ?")) {
+			select.setString(1, tableName);
+			try (ResultSet rs = select.executeQuery()) {
+				return rs.next();
+			}
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package com.CssServer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A binary copy of the cached groups and memberships, for a fast startup.
+ *
+ * <p>
+ * The snapshot records the last ChangeLog sequence number it includes. On
+ * startup the file is mapped and the cache serves the memberships straight
+ * from it, see MappedMemberships, while they are copied into the cache in
+ * the background; only the groups are decoded up front. Only the rows
+ * logged after that sequence number are read back from the tables. The
+ * users whose membership was buffered but not committed when the snapshot
+ * was taken are listed as dirty, they are read back too.
+ *
+ * <p>
+ * Layout, big-endian, strings as their UTF-8 length and bytes:
+ * header: magic, format, changeSeq, the four counts and the index slots;
+ * groups: name, latitude, longitude, indexed by their registry id;
+ * the ids of the groups of the GroupName table;
+ * dirty userids;
+ * the memberships, ordered by group, with their index, see
+ * MappedMemberships.
+ */
+class DatabaseSnapshot {
+	private static final int MAGIC = 0x43435353;
+	private static final int FORMAT = 2;
+
+	final long changeSeq;
+	final String[] groupNames;
+	final double[] groupLatitudes;
+	final double[] groupLongitudes;
+	final int[] tableGroups;
+	// the memberships of a snapshot taken from the cache
+	final String[] userids;
+	final int[] memberGroups;
+	// or of a snapshot read from its file
+	final MappedMemberships mappedMemberships;
+	final String[] dirtyUserids;
+
+	DatabaseSnapshot(long changeSeq, String[] groupNames, double[] groupLatitudes,
+			double[] groupLongitudes, int[] tableGroups, String[] userids, int[] memberGroups,
+			String[] dirtyUserids) {
+		this.changeSeq = changeSeq;
+		this.groupNames = groupNames;
+		this.groupLatitudes = groupLatitudes;
+		this.groupLongitudes = groupLongitudes;
+		this.tableGroups = tableGroups;
+		this.userids = userids;
+		this.memberGroups = memberGroups;
+		this.mappedMemberships = null;
+		this.dirtyUserids = dirtyUserids;
+	}
+
+	private DatabaseSnapshot(long changeSeq, String[] groupNames, double[] groupLatitudes,
+			double[] groupLongitudes, int[] tableGroups, MappedMemberships mappedMemberships,
+			String[] dirtyUserids) {
+		this.changeSeq = changeSeq;
+		this.groupNames = groupNames;
+		this.groupLatitudes = groupLatitudes;
+		this.groupLongitudes = groupLongitudes;
+		this.tableGroups = tableGroups;
+		this.userids = null;
+		this.memberGroups = null;
+		this.mappedMemberships = mappedMemberships;
+		this.dirtyUserids = dirtyUserids;
+	}
+
+	/**
+	 * Writes the snapshot, replacing the file atomically once it is synced.
+	 */
+	void write(File file) throws IOException {
+		int count = userids.length;
+		// the memberships by group, and where the members of each group start
+		int[] groupStarts = new int[groupNames.length + 1];
+		for (int group : memberGroups) {
+			groupStarts[group + 1]++;
+		}
+		for (int group = 0; group < groupNames.length; group++) {
+			groupStarts[group + 1] += groupStarts[group];
+		}
+		int[] order = new int[count];
+		int[] next = Arrays.copyOf(groupStarts, groupNames.length);
+		for (int i = 0; i < count; i++) {
+			order[next[memberGroups[i]]++] = i;
+		}
+		byte[][] encodedUserids = new byte[count][];
+		for (int record = 0; record < count; record++) {
+			encodedUserids[record] = userids[order[record]].getBytes(StandardCharsets.UTF_8);
+		}
+		int slots = MappedMemberships.slotsFor(count);
+		int[] index = new int[slots * 2];
+		for (int slot = 0; slot < slots; slot++) {
+			index[slot * 2 + 1] = -1;
+		}
+		for (int record = 0; record < count; record++) {
+			int hash = userids[order[record]].hashCode();
+			int slot = MappedMemberships.firstSlot(hash, slots);
+			while (index[slot * 2 + 1] != -1) {
+				slot = (slot + 1) & (slots - 1);
+			}
+			index[slot * 2] = hash;
+			index[slot * 2 + 1] = record;
+		}
+
+		File temporary = new File(file.getPath() + ".tmp");
+		try (FileOutputStream stream = new FileOutputStream(temporary)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeLong(changeSeq);
+			out.writeInt(groupNames.length);
+			out.writeInt(tableGroups.length);
+			out.writeInt(count);
+			out.writeInt(dirtyUserids.length);
+			out.writeInt(slots);
+			for (int i = 0; i < groupNames.length; i++) {
+				writeString(out, groupNames[i]);
+				out.writeDouble(groupLatitudes[i]);
+				out.writeDouble(groupLongitudes[i]);
+			}
+			for (int id : tableGroups) {
+				out.writeInt(id);
+			}
+			for (String userid : dirtyUserids) {
+				writeString(out, userid);
+			}
+			long position = MappedMemberships.getRecordsPosition(out.size(), groupNames.length,
+					count, slots);
+			for (int start : groupStarts) {
+				out.writeInt(start);
+			}
+			for (int record = 0; record < count; record++) {
+				out.writeInt((int) position);
+				position += 4 + encodedUserids[record].length + 4;
+			}
+			if (position > Integer.MAX_VALUE) {
+				throw new IOException("Too many memberships for a snapshot: " + count);
+			}
+			for (int value : index) {
+				out.writeInt(value);
+			}
+			for (int record = 0; record < count; record++) {
+				out.writeInt(encodedUserids[record].length);
+				out.write(encodedUserids[record]);
+				out.writeInt(memberGroups[order[record]]);
+			}
+			out.flush();
+			stream.getFD().sync();
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Maps a snapshot file and reads its groups. The memberships are left
+	 * in the mapped file.
+	 *
+	 * @throws IOException
+	 *             If the file can't be read or isn't a complete snapshot.
+	 */
+	static DatabaseSnapshot read(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (in.getInt() != MAGIC || in.getInt() != FORMAT) {
+				throw new IOException("Not a snapshot: " + file);
+			}
+			long changeSeq = in.getLong();
+			String[] groupNames = new String[in.getInt()];
+			int[] tableGroups = new int[in.getInt()];
+			int count = in.getInt();
+			String[] dirtyUserids = new String[in.getInt()];
+			int slots = in.getInt();
+			if (count < 0 || slots != MappedMemberships.slotsFor(count)) {
+				throw new IOException("Corrupt snapshot: " + file);
+			}
+			double[] groupLatitudes = new double[groupNames.length];
+			double[] groupLongitudes = new double[groupNames.length];
+			for (int i = 0; i < groupNames.length; i++) {
+				groupNames[i] = readString(in);
+				groupLatitudes[i] = in.getDouble();
+				groupLongitudes[i] = in.getDouble();
+			}
+			for (int i = 0; i < tableGroups.length; i++) {
+				tableGroups[i] = in.getInt();
+			}
+			for (int i = 0; i < dirtyUserids.length; i++) {
+				dirtyUserids[i] = readString(in);
+			}
+			MappedMemberships memberships = new MappedMemberships(in, in.position(),
+					groupNames.length, count, slots);
+			// the file is replaced once complete, but check its end anyway
+			if (memberships.getEnd() != in.limit()) {
+				throw new IOException("Truncated snapshot: " + file);
+			}
+			return new DatabaseSnapshot(changeSeq, groupNames, groupLatitudes, groupLongitudes,
+					tableGroups, memberships, dirtyUserids);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException
+				| IllegalArgumentException | NegativeArraySizeException e) {
+			throw new IOException("Truncated snapshot: " + file, e);
+		}
+	}
+
+	/**
+	 * Returns the number of memberships in the snapshot.
+	 */
+	int getMembershipCount() {
+		return userids != null ? userids.length : mappedMemberships.size();
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(MappedByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,89 @@
+package com.CssServer;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single-row write to the database.
+ *
+ * <p>
+ * Runs as one execution of a cached prepared statement, either on its own or
+ * within a batch, see BatchWriter. Once it is committed the cache is updated
+ * and the callers waiting on it are released.
+ */
+public abstract class DatabaseWrite {
+	final String sql;
+	private final String description;
+	// a caller is blocked on it, its batch is committed without waiting
+	volatile boolean awaited = false;
+	// System.nanoTime() when it was queued, see BatchWriter
+	long submittedAt;
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile boolean succeeded;
+
+	/**
+	 * @param sql
+	 *            The statement, with its parameters as '?'.
+	 * @param description
+	 *            What the write does, for the logs.
+	 */
+	DatabaseWrite(String sql, String description) {
+		this.sql = sql;
+		this.description = description;
+	}
+
+	/**
+	 * Sets the parameters of the statement.
+	 */
+	abstract void bind(PreparedStatement statement) throws SQLException;
+
+	/**
+	 * Called once the write is committed, to update the cache.
+	 *
+	 * @param updateCount
+	 *            The number of rows changed.
+	 */
+	abstract void applied(int updateCount);
+
+	void complete(boolean _succeeded) {
+		succeeded = _succeeded;
+		done.countDown();
+	}
+
+	/**
+	 * Waits until the write is committed or failed.
+	 *
+	 * @return true if the write succeeded.
+	 */
+	public boolean await() throws InterruptedException {
+		done.await();
+		return succeeded;
+	}
+
+	/**
+	 * Waits until the write is committed or failed, or the timeout elapsed.
+	 *
+	 * @return true if the write is done.
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return done.await(timeout, unit);
+	}
+
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Returns true if the write is done and succeeded.
+	 */
+	public boolean isSucceeded() {
+		return isDone() && succeeded;
+	}
+
+	@Override
+	public String toString() {
+		return description;
+	}
+}
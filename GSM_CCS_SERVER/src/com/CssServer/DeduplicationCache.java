@@ -0,0 +1,87 @@
+package com.CssServer;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the message_id of the recent upstream messages.
+ *
+ * <p>
+ * CCS redelivers an upstream message when our ACK gets lost, so a message_id
+ * seen again within the window is a duplicate. The ids are kept in two
+ * generations: new ids go into the current one, and once it is full or older
+ * than the window it becomes the previous one, replacing the oldest. An id is
+ * therefore remembered for at least one window unless the traffic overflows
+ * the capacity, and the memory never exceeds two generations.
+ */
+class DeduplicationCache {
+	private final int generationCapacity;
+	private final long windowNanos;
+	private volatile Set<String> current;
+	private volatile Set<String> previous;
+	private volatile long currentStart;
+
+	/**
+	 * Creates the cache.
+	 *
+	 * @param generationCapacity
+	 *            Maximum number of ids per generation.
+	 * @param windowMillis
+	 *            Time span of a generation.
+	 */
+	DeduplicationCache(int generationCapacity, long windowMillis) {
+		this.generationCapacity = generationCapacity;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		this.current = newGeneration();
+		this.previous = newGeneration();
+		this.currentStart = System.nanoTime();
+	}
+
+	/**
+	 * Records a message_id.
+	 *
+	 * @param messageId
+	 *            The message_id of an upstream message.
+	 * @return true the first time the id is seen, false for a duplicate.
+	 */
+	boolean markSeen(String messageId) {
+		Set<String> generation = current;
+		if (generation.size() >= generationCapacity
+				|| System.nanoTime() - currentStart > windowNanos) {
+			generation = rotate(generation);
+		}
+		if (previous.contains(messageId)) {
+			return false;
+		}
+		return generation.add(messageId);
+	}
+
+	/**
+	 * Returns the number of ids remembered.
+	 */
+	int size() {
+		return current.size() + previous.size();
+	}
+
+	private synchronized Set<String> rotate(Set<String> full) {
+		if (current == full) {
+			previous = full;
+			current = newGeneration();
+			currentStart = System.nanoTime();
+		}
+		return current;
+	}
+
+	/**
+	 * Creates an empty generation.
+	 *
+	 * <p>
+	 * It starts small and grows with the traffic: presized to the capacity,
+	 * its table would be allocated by the upstream thread that happens to
+	 * rotate, and a quiet window would not need it anyway.
+	 */
+	private Set<String> newGeneration() {
+		return ConcurrentHashMap.newKeySet();
+	}
+}
@@ -0,0 +1,20 @@
+package com.CssServer;
+
+/**
+ * Notified of the fate of a downstream message.
+ */
+interface DeliveryListener {
+	/**
+	 * Called when CCS acks the message.
+	 */
+	void delivered(DownstreamMessage message);
+
+	/**
+	 * Called when the message is given up on: NACKed with a permanent error,
+	 * out of retries, or no connection left to send it on.
+	 *
+	 * @param error
+	 *            The NACK error code, or null if the message wasn't NACKed.
+	 */
+	void failed(DownstreamMessage message, String error);
+}
@@ -0,0 +1,38 @@
+package com.CssServer;
+
+/**
+ * A downstream message, queued or waiting for its ack/nack from CCS.
+ */
+class DownstreamMessage {
+	public DownstreamMessage(String _messageId, String _json) {
+		messageId = _messageId;
+		json = _json;
+	}
+
+	public String messageId;
+	public String json;
+	// time of the last transmission, in System.nanoTime() units
+	public long sentAt;
+	// number of retries after a NACK
+	public int attempts;
+	// notified of the ack or the failure, may be null
+	public DeliveryListener listener;
+
+	/**
+	 * Reports the ack of the message to its listener, if any.
+	 */
+	void delivered() {
+		if (listener != null) {
+			listener.delivered(this);
+		}
+	}
+
+	/**
+	 * Reports the failure of the message to its listener, if any.
+	 */
+	void failed(String error) {
+		if (listener != null) {
+			listener.failed(this, error);
+		}
+	}
+}
@@ -11,6 +11,18 @@ import org.jivesoftware.smack.util.StringUtils;
 class GcmPacketExtension extends DefaultPacketExtension {
 	public static final String GCM_ELEMENT_NAME = "gcm";
 	public static final String GCM_NAMESPACE = "google:mobile:data";
+	private static final String XML_PREFIX = "<" + GCM_ELEMENT_NAME + " xmlns=\""
+			+ GCM_NAMESPACE + "\">";
+	private static final String XML_SUFFIX = "</" + GCM_ELEMENT_NAME + ">";
+	private static final int XML_OVERHEAD = XML_PREFIX.length() + XML_SUFFIX.length();
+	// buffers grown past this size by an unusual message are not kept
+	private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+	private static final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(1024);
+		}
+	};
 	String json;
 
 	public GcmPacketExtension(String json) {
@@ -24,43 +36,73 @@ class GcmPacketExtension extends DefaultPacketExtension {
 
 	@Override
 	public String toXML() {
-		return String.format("<%s xmlns=\"%s\">%s</%s>", GCM_ELEMENT_NAME,
-				GCM_NAMESPACE, json, GCM_ELEMENT_NAME);
+		StringBuilder buf = new StringBuilder(json.length() + XML_OVERHEAD);
+		appendXML(buf);
+		return buf.toString();
 	}
 
+	/**
+	 * Appends the extension element to a buffer.
+	 */
+	void appendXML(StringBuilder buf) {
+		buf.append(XML_PREFIX).append(json).append(XML_SUFFIX);
+	}
+
+	/**
+	 * Wraps the extension into a message stanza.
+	 * 
+	 * <p>
+	 * The stanza is rendered once, on the first call to its toXML(), into a
+	 * per-thread buffer. The resulting string is kept, so the interceptor
+	 * logging it and the Smack writer sending it share the same rendering.
+	 * The stanza must therefore not be changed once it has been rendered.
+	 */
 	public Packet toPacket() {
 		return new Message() {
+			private String xml;
+
 			// Must override toXML() because it includes a <body>
 			@Override
 			public String toXML() {
-
-				StringBuilder buf = new StringBuilder();
-				buf.append("<message");
-				if (getXmlns() != null) {
-					buf.append(" xmlns=\"").append(getXmlns()).append("\"");
-				}
-				if (getLanguage() != null) {
-					buf.append(" xml:lang=\"").append(getLanguage())
-							.append("\"");
+				if (xml == null) {
+					xml = render(this);
 				}
-				if (getPacketID() != null) {
-					buf.append(" id=\"").append(getPacketID()).append("\"");
-				}
-				if (getTo() != null) {
-					buf.append(" to=\"")
-							.append(StringUtils.escapeForXML(getTo()))
-							.append("\"");
-				}
-				if (getFrom() != null) {
-					buf.append(" from=\"")
-							.append(StringUtils.escapeForXML(getFrom()))
-							.append("\"");
-				}
-				buf.append(">");
-				buf.append(GcmPacketExtension.this.toXML());
-				buf.append("</message>");
-				return buf.toString();
+				return xml;
 			}
 		};
 	}
+
+	private String render(Message message) {
+		StringBuilder buf = buffers.get();
+		buf.setLength(0);
+		buf.append("<message");
+		if (message.getXmlns() != null) {
+			buf.append(" xmlns=\"").append(message.getXmlns()).append("\"");
+		}
+		if (message.getLanguage() != null) {
+			buf.append(" xml:lang=\"").append(message.getLanguage())
+					.append("\"");
+		}
+		if (message.getPacketID() != null) {
+			buf.append(" id=\"").append(message.getPacketID()).append("\"");
+		}
+		if (message.getTo() != null) {
+			buf.append(" to=\"")
+					.append(StringUtils.escapeForXML(message.getTo()))
+					.append("\"");
+		}
+		if (message.getFrom() != null) {
+			buf.append(" from=\"")
+					.append(StringUtils.escapeForXML(message.getFrom()))
+					.append("\"");
+		}
+		buf.append(">");
+		appendXML(buf);
+		buf.append("</message>");
+		String xml = buf.toString();
+		if (buf.capacity() > MAX_RETAINED_CAPACITY) {
+			buffers.remove();
+		}
+		return xml;
+	}
 }
@@ -0,0 +1,100 @@
+package com.CssServer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends a payload to every member of a group.
+ *
+ * <p>
+ * The members are read from the membership cache of the Database and split
+ * into batches. The batches are encoded and handed to the connection pool in
+ * parallel by a small pool of threads; each message then goes to the least
+ * loaded connection, whose window paces it to what CCS accepts.
+ */
+class GroupFanout {
+	private static final Logger logger = CcsServer.logger;
+	public static final int BATCH_SIZE = 500;
+
+	private final CcsServer server;
+	private final ExecutorService executor;
+
+	/**
+	 * Creates the fan-out and its threads.
+	 *
+	 * @param server
+	 *            The server providing the members, the message ids and the pool.
+	 * @param threads
+	 *            Number of batches sent in parallel.
+	 */
+	GroupFanout(CcsServer server, int threads) {
+		this.server = server;
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ccs-fanout-" + threadCount.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts sending a payload to the members of a group.
+	 *
+	 * @return the progress of the broadcast, updated as the acks come in.
+	 */
+	GroupSendProgress send(final String groupName, final Map<String, String> payload) {
+		final GroupSendProgress progress = new GroupSendProgress(groupName);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				List<String> members = server.database.getMembersOfGroup(groupName);
+				progress.setTotal(members.size());
+				logger.log(Level.INFO, "Sending to " + members.size() + " members of " + groupName);
+				for (int start = 0; start < members.size(); start += BATCH_SIZE) {
+					final List<String> batch = members.subList(start,
+							Math.min(start + BATCH_SIZE, members.size()));
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							sendBatch(batch, payload, progress);
+						}
+					});
+				}
+			}
+		});
+		return progress;
+	}
+
+	/**
+	 * Stops the threads. Batches not started yet are dropped.
+	 */
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void sendBatch(List<String> batch, Map<String, String> payload,
+			GroupSendProgress progress) {
+		for (String to : batch) {
+			String messageId = server.getRandomMessageId();
+			DownstreamMessage message = new DownstreamMessage(messageId,
+					CcsServer.createJsonMessage(to, messageId, payload, null, null, null));
+			message.listener = progress;
+			try {
+				server.pool.sendDownstream(message);
+				progress.sent();
+			} catch (IllegalStateException e) {
+				logger.log(Level.WARNING, "Unable to send to " + to + " of " + progress.getGroupName(), e);
+				message.failed(null);
+			}
+		}
+	}
+}
@@ -0,0 +1,307 @@
+package com.CssServer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory spatial index of the group locations.
+ *
+ * <p>
+ * The globe is cut into a grid of cells of a fixed size in degrees, and each
+ * group is stored in the cell holding its location. A query only visits the
+ * cells around the point, instead of scanning the whole GroupName table.
+ * Distances are great-circle distances in kilometers.
+ */
+public class GroupLocationIndex {
+	public static final double DEFAULT_CELL_DEGREES = 0.5;
+	public static final double EARTH_RADIUS_KM = 6371.0;
+	private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180.0;
+
+	/**
+	 * A group found by a query, with its distance to the query point.
+	 */
+	public static class Match {
+		Match(GroupNameEntry _group, double _distanceKm) {
+			group = _group;
+			distanceKm = _distanceKm;
+		}
+
+		public final GroupNameEntry group;
+		public final double distanceKm;
+	}
+
+	private static final Comparator<Match> CLOSEST_FIRST = new Comparator<Match>() {
+		@Override
+		public int compare(Match a, Match b) {
+			return Double.compare(a.distanceKm, b.distanceKm);
+		}
+	};
+
+	private final double cellDegrees;
+	private final int rows;
+	private final int columns;
+	// one list per cell, null while empty; guarded by lock
+	private final List<GroupNameEntry>[] cells;
+	private int size = 0;
+	private volatile long version = 0;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public GroupLocationIndex() {
+		this(DEFAULT_CELL_DEGREES);
+	}
+
+	/**
+	 * Creates an empty index.
+	 *
+	 * @param cellDegrees
+	 *            Size of the grid cells. Should be about the radius of the
+	 *            typical query.
+	 */
+	public GroupLocationIndex(double cellDegrees) {
+		this.cellDegrees = cellDegrees;
+		this.rows = (int) Math.ceil(180.0 / cellDegrees);
+		this.columns = (int) Math.ceil(360.0 / cellDegrees);
+		@SuppressWarnings("unchecked")
+		List<GroupNameEntry>[] grid = new List[rows * columns];
+		this.cells = grid;
+	}
+
+	/**
+	 * Adds a group.
+	 */
+	public void add(GroupNameEntry group) {
+		int cell = cell(row(group.latitude), column(group.longitude));
+		lock.writeLock().lock();
+		try {
+			List<GroupNameEntry> entries = cells[cell];
+			if (entries == null) {
+				entries = new ArrayList<GroupNameEntry>(2);
+				cells[cell] = entries;
+			}
+			entries.add(group);
+			size++;
+			version++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the groups with the name and location of the specified one.
+	 */
+	public void remove(GroupNameEntry group) {
+		int cell = cell(row(group.latitude), column(group.longitude));
+		lock.writeLock().lock();
+		try {
+			List<GroupNameEntry> entries = cells[cell];
+			if (entries == null) {
+				return;
+			}
+			for (int i = entries.size() - 1; i >= 0; i--) {
+				GroupNameEntry entry = entries.get(i);
+				if (entry.name.equals(group.name) && entry.latitude == group.latitude
+						&& entry.longitude == group.longitude) {
+					entries.remove(i);
+					size--;
+					version++;
+				}
+			}
+			if (entries.isEmpty()) {
+				cells[cell] = null;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes all the groups.
+	 */
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			Arrays.fill(cells, null);
+			size = 0;
+			version++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of groups in the index.
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns a number changed by every add, remove and clear.
+	 *
+	 * <p>
+	 * A result computed at a given version is still valid as long as the
+	 * version is unchanged.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the groups within a distance of a point, closest first.
+	 *
+	 * @param latitude
+	 *            Latitude of the point.
+	 * @param longitude
+	 *            Longitude of the point.
+	 * @param radiusKm
+	 *            Maximum distance, in kilometers.
+	 */
+	public List<Match> findWithinRadius(double latitude, double longitude, double radiusKm) {
+		List<Match> matches = new ArrayList<Match>();
+		lock.readLock().lock();
+		try {
+			scan(latitude, longitude, radiusKm, matches, null, 0);
+		} finally {
+			lock.readLock().unlock();
+		}
+		Collections.sort(matches, CLOSEST_FIRST);
+		return matches;
+	}
+
+	/**
+	 * Returns the k groups closest to a point, closest first.
+	 *
+	 * <p>
+	 * Scans a radius around the point, doubled until it holds k groups: all
+	 * the groups closer than the k-th found have been seen by then.
+	 *
+	 * @param latitude
+	 *            Latitude of the point.
+	 * @param longitude
+	 *            Longitude of the point.
+	 * @param k
+	 *            Number of groups wanted.
+	 */
+	public List<Match> findNearest(double latitude, double longitude, int k) {
+		// farthest match on top
+		PriorityQueue<Match> best = new PriorityQueue<Match>(Math.max(1, k) + 1,
+				Collections.reverseOrder(CLOSEST_FIRST));
+		lock.readLock().lock();
+		try {
+			int wanted = Math.min(k, size);
+			double radiusKm = cellDegrees * KM_PER_DEGREE;
+			while (wanted > 0) {
+				best.clear();
+				scan(latitude, longitude, radiusKm, null, best, wanted);
+				if (best.size() >= wanted) {
+					break;
+				}
+				radiusKm *= 2;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		List<Match> matches = new ArrayList<Match>(best);
+		Collections.sort(matches, CLOSEST_FIRST);
+		return matches;
+	}
+
+	/**
+	 * Great-circle distance between two points, in kilometers.
+	 */
+	public static double distanceKm(double latitude1, double longitude1,
+			double latitude2, double longitude2) {
+		double dLatitude = Math.toRadians(latitude2 - latitude1);
+		double dLongitude = Math.toRadians(longitude2 - longitude1);
+		double a = Math.sin(dLatitude / 2) * Math.sin(dLatitude / 2)
+				+ Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2))
+				* Math.sin(dLongitude / 2) * Math.sin(dLongitude / 2);
+		return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1.0, Math.sqrt(a)));
+	}
+
+	/**
+	 * Collects the groups within a distance of a point, visiting only the
+	 * cells that can hold them. Must be called with the read lock held.
+	 *
+	 * @param matches
+	 *            Receives all the groups found, or null to keep the nearest.
+	 * @param nearest
+	 *            Receives the k nearest groups found, farthest on top.
+	 */
+	private void scan(double latitude, double longitude, double radiusKm,
+			List<Match> matches, PriorityQueue<Match> nearest, int k) {
+		double latitudeSpan = radiusKm / KM_PER_DEGREE;
+		int firstRow = row(latitude - latitudeSpan);
+		int lastRow = row(latitude + latitudeSpan);
+
+		// widest longitude difference of a point within the radius, unless
+		// the circle reaches a pole
+		int columnSpan = columns;
+		if (Math.abs(latitude) + latitudeSpan < 90.0) {
+			double longitudeSpan = Math.toDegrees(Math.asin(Math.sin(radiusKm / EARTH_RADIUS_KM)
+					/ Math.cos(Math.toRadians(latitude))));
+			columnSpan = (int) Math.ceil(longitudeSpan / cellDegrees) + 1;
+		}
+		int firstColumn = column(longitude) - columnSpan;
+		int lastColumn = column(longitude) + columnSpan;
+		if (columnSpan * 2 + 1 >= columns) {
+			firstColumn = 0;
+			lastColumn = columns - 1;
+		}
+
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				List<GroupNameEntry> entries = cells[cell(row, wrap(column))];
+				if (entries == null) {
+					continue;
+				}
+				for (GroupNameEntry entry : entries) {
+					if (Math.abs(entry.latitude - latitude) > latitudeSpan) {
+						continue;
+					}
+					double distance = distanceKm(latitude, longitude, entry.latitude, entry.longitude);
+					if (distance > radiusKm) {
+						continue;
+					}
+					if (matches != null) {
+						matches.add(new Match(entry, distance));
+					} else if (nearest.size() < k) {
+						nearest.add(new Match(entry, distance));
+					} else if (distance < nearest.peek().distanceKm) {
+						nearest.poll();
+						nearest.add(new Match(entry, distance));
+					}
+				}
+			}
+		}
+	}
+
+	private int row(double latitude) {
+		int row = (int) Math.floor((latitude + 90.0) / cellDegrees);
+		return Math.max(0, Math.min(rows - 1, row));
+	}
+
+	private int column(double longitude) {
+		return wrap((int) Math.floor((longitude + 180.0) / cellDegrees));
+	}
+
+	private int wrap(int column) {
+		int wrapped = column % columns;
+		return wrapped < 0 ? wrapped + columns : wrapped;
+	}
+
+	private int cell(int row, int column) {
+		return row * columns + column;
+	}
+}
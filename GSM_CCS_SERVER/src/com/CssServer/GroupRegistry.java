@@ -0,0 +1,135 @@
+package com.CssServer;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The groups known to the cache, each with an int id.
+ *
+ * <p>
+ * A group is identified by its name only: the id of a name never changes,
+ * and its location is the one of the GroupName table, set by locate(). The
+ * groups are stored column by column: the interned names, the latitudes and
+ * the longitudes each in their own array, indexed by id. The cache refers to
+ * the groups by id only, so the data of a group is held once however many
+ * members it has.
+ *
+ * <p>
+ * The ids are never reused: a group stays registered after it is removed
+ * from the tables, the registry only grows with the number of distinct
+ * names ever seen. Lookups don't lock; registrations and moves are
+ * serialized, and copy the columns so that a lookup never sees half a
+ * location.
+ */
+class GroupRegistry {
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * The columns, replaced by copies when they are full or a group moved.
+	 */
+	private static class Columns {
+		final String[] names;
+		final double[] latitudes;
+		final double[] longitudes;
+		// the boxed ids, so that the cache maps share them
+		final Integer[] ids;
+
+		Columns(int capacity) {
+			names = new String[capacity];
+			latitudes = new double[capacity];
+			longitudes = new double[capacity];
+			ids = new Integer[capacity];
+		}
+
+		Columns(Columns columns, int capacity) {
+			names = Arrays.copyOf(columns.names, capacity);
+			latitudes = Arrays.copyOf(columns.latitudes, capacity);
+			longitudes = Arrays.copyOf(columns.longitudes, capacity);
+			ids = Arrays.copyOf(columns.ids, capacity);
+		}
+	}
+
+	private final ConcurrentHashMap<String, Integer> idsByName = new ConcurrentHashMap<String, Integer>();
+	private volatile Columns columns = new Columns(INITIAL_CAPACITY);
+	private volatile int size = 0;
+
+	/**
+	 * Returns the id of a group name, registering it the first time.
+	 *
+	 * <p>
+	 * The location is only used for a new name, until locate() sets the one
+	 * of the GroupName table.
+	 *
+	 * @return the id, boxed once per name.
+	 */
+	Integer register(String name, double latitude, double longitude) {
+		Integer id = idsByName.get(name);
+		if (id != null) {
+			return id;
+		}
+		synchronized (this) {
+			id = idsByName.get(name);
+			if (id != null) {
+				return id;
+			}
+			Columns current = columns;
+			int newId = size;
+			if (newId == current.names.length) {
+				current = new Columns(current, newId * 2);
+			}
+			current.names[newId] = name.intern();
+			current.latitudes[newId] = latitude;
+			current.longitudes[newId] = longitude;
+			current.ids[newId] = Integer.valueOf(newId);
+			columns = current;
+			size = newId + 1;
+			idsByName.put(current.names[newId], current.ids[newId]);
+			return current.ids[newId];
+		}
+	}
+
+	/**
+	 * Returns the id of a group of the GroupName table, registering it the
+	 * first time, and moves it to the location of the entry.
+	 *
+	 * @return the id, boxed once per name.
+	 */
+	synchronized Integer locate(GroupNameEntry group) {
+		Integer id = register(group.name, group.latitude, group.longitude);
+		Columns current = columns;
+		if (current.latitudes[id] != group.latitude || current.longitudes[id] != group.longitude) {
+			current = new Columns(current, current.names.length);
+			current.latitudes[id] = group.latitude;
+			current.longitudes[id] = group.longitude;
+			columns = current;
+		}
+		return id;
+	}
+
+	String getName(int id) {
+		return columns.names[id];
+	}
+
+	double getLatitude(int id) {
+		return columns.latitudes[id];
+	}
+
+	double getLongitude(int id) {
+		return columns.longitudes[id];
+	}
+
+	/**
+	 * Returns a new GroupNameEntry of a group.
+	 */
+	GroupNameEntry getGroup(int id) {
+		Columns current = columns;
+		return new GroupNameEntry(current.names[id], current.latitudes[id], current.longitudes[id]);
+	}
+
+	/**
+	 * Returns the number of groups registered, i.e. the bound of the ids.
+	 */
+	int size() {
+		return size;
+	}
+}
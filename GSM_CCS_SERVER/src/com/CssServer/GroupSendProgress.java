@@ -0,0 +1,123 @@
+package com.CssServer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress of a message sent to all the members of a group.
+ *
+ * <p>
+ * Counts the messages handed to the connections, acked by CCS and failed,
+ * with the failures broken down by error code. The broadcast is complete
+ * once every member's message is either delivered or failed.
+ */
+public class GroupSendProgress implements DeliveryListener {
+	// failures without a NACK, e.g. no connection available
+	public static final String NOT_SENT = "NOT_SENT";
+
+	private final String groupName;
+	private volatile int total = -1;
+	private final AtomicInteger sent = new AtomicInteger();
+	private final AtomicInteger delivered = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final Map<String, AtomicInteger> failuresByError = new ConcurrentHashMap<String, AtomicInteger>();
+	private final CountDownLatch completion = new CountDownLatch(1);
+
+	GroupSendProgress(String groupName) {
+		this.groupName = groupName;
+	}
+
+	/**
+	 * Sets the number of members, once they are resolved.
+	 */
+	void setTotal(int _total) {
+		total = _total;
+		checkCompletion();
+	}
+
+	/**
+	 * Counts a message handed to the connection pool.
+	 */
+	void sent() {
+		sent.incrementAndGet();
+	}
+
+	@Override
+	public void delivered(DownstreamMessage message) {
+		delivered.incrementAndGet();
+		checkCompletion();
+	}
+
+	@Override
+	public void failed(DownstreamMessage message, String error) {
+		String key = error == null ? NOT_SENT : error;
+		AtomicInteger count = failuresByError.get(key);
+		if (count == null) {
+			failuresByError.putIfAbsent(key, new AtomicInteger());
+			count = failuresByError.get(key);
+		}
+		count.incrementAndGet();
+		failed.incrementAndGet();
+		checkCompletion();
+	}
+
+	/**
+	 * Waits until every message is delivered or failed.
+	 *
+	 * @return true if complete, false if the timeout elapsed first.
+	 */
+	public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+		return completion.await(timeout, unit);
+	}
+
+	public boolean isComplete() {
+		return completion.getCount() == 0;
+	}
+
+	public String getGroupName() {
+		return groupName;
+	}
+
+	/**
+	 * Returns the number of members, or -1 while they are being resolved.
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	public int getSent() {
+		return sent.get();
+	}
+
+	public int getDelivered() {
+		return delivered.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Returns the number of failures per NACK error code. Messages that could
+	 * not be sent at all are counted under NOT_SENT.
+	 */
+	public Map<String, AtomicInteger> getFailuresByError() {
+		return failuresByError;
+	}
+
+	@Override
+	public String toString() {
+		return "Group " + groupName + ": " + delivered.get() + " delivered, "
+				+ failed.get() + " failed, " + sent.get() + " sent of " + total;
+	}
+
+	private void checkCompletion() {
+		int expected = total;
+		if (expected >= 0 && delivered.get() + failed.get() >= expected) {
+			completion.countDown();
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package com.CssServer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel running delayed tasks with a fixed tick resolution.
+ *
+ * <p>
+ * The wheel is an array of buckets, each holding the tasks due in that
+ * slot. Scheduling only appends the task to a lock-free queue, so it costs
+ * O(1) whatever the number of pending tasks. A single worker thread moves
+ * the new tasks into their bucket, and on every tick runs the tasks of the
+ * current bucket whose round has come. Tasks run on the worker thread and
+ * must therefore be short.
+ */
+class HashedTimingWheel {
+	private static final Logger logger = CcsServer.logger;
+
+	/**
+	 * A scheduled task, linked into its bucket.
+	 */
+	private static class Timeout {
+		Timeout(Runnable _task, long _deadline) {
+			task = _task;
+			deadline = _deadline;
+		}
+
+		Runnable task;
+		// nanoseconds since the start of the wheel
+		long deadline;
+		// complete turns of the wheel left before expiry
+		long remainingRounds;
+		Timeout next;
+	}
+
+	private final String name;
+	private final long tickNanos;
+	private final int mask;
+	// only touched by the worker thread
+	private final Timeout[] buckets;
+	private final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final long startTime = System.nanoTime();
+	private Thread worker;
+	private volatile boolean running = false;
+	private long tick = 0;
+
+	/**
+	 * Creates a wheel. The worker thread is not started until start() is called.
+	 *
+	 * @param name
+	 *            Name of the wheel, used for the worker thread.
+	 * @param tickMillis
+	 *            Duration of a tick, i.e. the resolution of the delays.
+	 * @param wheelSize
+	 *            Number of buckets, rounded up to a power of two.
+	 */
+	HashedTimingWheel(String name, long tickMillis, int wheelSize) {
+		if (tickMillis < 1 || wheelSize < 1) {
+			throw new IllegalArgumentException("Timing wheel " + name
+					+ " needs a positive tick and size");
+		}
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		this.name = name;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.mask = size - 1;
+		this.buckets = new Timeout[size];
+	}
+
+	/**
+	 * Starts the worker thread.
+	 */
+	void start() {
+		running = true;
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "ccs-" + name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Stops the worker thread. The pending tasks are discarded.
+	 */
+	void stop() {
+		running = false;
+		if (worker != null) {
+			worker.interrupt();
+		}
+	}
+
+	/**
+	 * Schedules a task.
+	 *
+	 * @param task
+	 *            The task to run.
+	 * @param delayMillis
+	 *            Delay before running the task. It will run within one tick
+	 *            after the delay.
+	 */
+	void schedule(Runnable task, long delayMillis) {
+		long deadline = System.nanoTime() - startTime
+				+ TimeUnit.MILLISECONDS.toNanos(delayMillis);
+		pending.incrementAndGet();
+		newTimeouts.add(new Timeout(task, deadline));
+	}
+
+	/**
+	 * Returns the number of tasks waiting to run.
+	 */
+	int getPendingCount() {
+		return pending.get();
+	}
+
+	private void work() {
+		while (running) {
+			long deadline = waitForNextTick();
+			if (deadline < 0) {
+				continue;
+			}
+			transferNewTimeouts();
+			expire((int) (tick & mask), deadline);
+			tick++;
+		}
+	}
+
+	/**
+	 * Sleeps until the end of the current tick.
+	 *
+	 * @return the time reached, in nanoseconds since the start, or -1 if
+	 *         interrupted.
+	 */
+	private long waitForNextTick() {
+		long deadline = tickNanos * (tick + 1);
+		while (true) {
+			long now = System.nanoTime() - startTime;
+			long sleepMillis = TimeUnit.NANOSECONDS.toMillis(deadline - now + 999999);
+			if (sleepMillis <= 0) {
+				return now;
+			}
+			try {
+				Thread.sleep(sleepMillis);
+			} catch (InterruptedException e) {
+				// stop() interrupts the worker
+				return -1;
+			}
+		}
+	}
+
+	private void transferNewTimeouts() {
+		Timeout timeout;
+		while ((timeout = newTimeouts.poll()) != null) {
+			long calculated = timeout.deadline / tickNanos;
+			timeout.remainingRounds = (calculated - tick) / buckets.length;
+			// a deadline already passed goes into the current bucket
+			long ticks = Math.max(calculated, tick);
+			int index = (int) (ticks & mask);
+			timeout.next = buckets[index];
+			buckets[index] = timeout;
+		}
+	}
+
+	private void expire(int bucket, long deadline) {
+		Timeout previous = null;
+		Timeout timeout = buckets[bucket];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+				// unlink and run
+				if (previous == null) {
+					buckets[bucket] = next;
+				} else {
+					previous.next = next;
+				}
+				pending.decrementAndGet();
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					logger.log(Level.SEVERE, "Timing wheel " + name + " task failed", e);
+				}
+			} else {
+				timeout.remainingRounds--;
+				previous = timeout;
+			}
+			timeout = next;
+		}
+	}
+}
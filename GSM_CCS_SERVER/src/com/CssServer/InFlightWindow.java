@@ -0,0 +1,214 @@
+package com.CssServer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * CCS flow-control window of a connection.
+ *
+ * <p>
+ * CCS accepts at most CcsServer.CCS_MAX_IN_FLIGHT unacknowledged downstream
+ * messages per connection. Every transmitted message takes a credit and is
+ * kept in the in-flight table, keyed by its message_id, until the matching
+ * ack or nack gives the credit back. Sends issued while no credit is left
+ * wait in a FIFO queue and are transmitted as credits come back. They also
+ * wait while the window is paused, i.e. while the connection is not usable.
+ *
+ * <p>
+ * CCS only acks a message on the stream it was sent on. When the stream is
+ * lost, the messages in flight must be taken off with takeInFlight() and
+ * sent again, or their credits are never given back.
+ */
+class InFlightWindow {
+	private static final Logger logger = CcsServer.logger;
+
+	/**
+	 * Writes a message to the connection.
+	 */
+	interface Transmitter {
+		void transmit(String json);
+	}
+
+	private final int capacity;
+	private final Transmitter transmitter;
+	private final ConcurrentHashMap<String, DownstreamMessage> inFlight;
+	// guarded by this
+	private final ArrayDeque<DownstreamMessage> pending = new ArrayDeque<DownstreamMessage>();
+	// guarded by this
+	private int credits;
+	// guarded by this
+	private boolean paused = false;
+
+	/**
+	 * Creates a window.
+	 *
+	 * @param capacity
+	 *            Maximum number of unacknowledged messages.
+	 * @param transmitter
+	 *            Writes the messages to the connection.
+	 */
+	InFlightWindow(int capacity, Transmitter transmitter) {
+		this.capacity = capacity;
+		this.transmitter = transmitter;
+		this.credits = capacity;
+		this.inFlight = new ConcurrentHashMap<String, DownstreamMessage>(capacity * 2);
+	}
+
+	/**
+	 * Transmits the message if a credit is available, queues it otherwise.
+	 *
+	 * @param message
+	 *            The message to send.
+	 */
+	void send(DownstreamMessage message) {
+		synchronized (this) {
+			if (paused || credits == 0 || !pending.isEmpty()) {
+				pending.addLast(message);
+				return;
+			}
+			credits--;
+		}
+		transmit(message);
+	}
+
+	/**
+	 * Releases the credit held by a message, after its ack or nack.
+	 *
+	 * @param messageId
+	 *            message_id of the ack/nack.
+	 * @return the released message, or null if it wasn't in flight.
+	 */
+	DownstreamMessage release(String messageId) {
+		DownstreamMessage message = inFlight.remove(messageId);
+		if (message == null) {
+			return null;
+		}
+		synchronized (this) {
+			credits++;
+		}
+		drain();
+		return message;
+	}
+
+	/**
+	 * Stops transmitting, every send is queued until resume() is called.
+	 */
+	synchronized void pause() {
+		paused = true;
+	}
+
+	/**
+	 * Starts transmitting again, beginning with the queued messages.
+	 */
+	void resume() {
+		synchronized (this) {
+			paused = false;
+		}
+		drain();
+	}
+
+	/**
+	 * Transmits queued messages for as long as credits are available and the
+	 * window is not paused.
+	 */
+	private void drain() {
+		while (true) {
+			DownstreamMessage next;
+			synchronized (this) {
+				if (paused || credits == 0 || pending.isEmpty()) {
+					return;
+				}
+				credits--;
+				next = pending.pollFirst();
+			}
+			if (!transmit(next)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Removes and returns all the messages waiting for a credit.
+	 *
+	 * <p>
+	 * Used to move the queue to another connection.
+	 */
+	synchronized List<DownstreamMessage> takePending() {
+		List<DownstreamMessage> taken = new ArrayList<DownstreamMessage>(pending);
+		pending.clear();
+		return taken;
+	}
+
+	/**
+	 * Removes and returns all the messages waiting for their ack/nack, giving
+	 * their credits back.
+	 *
+	 * <p>
+	 * Used to send them again on another connection when their connection
+	 * was lost before the acks came in.
+	 */
+	List<DownstreamMessage> takeInFlight() {
+		List<DownstreamMessage> taken = new ArrayList<DownstreamMessage>();
+		for (String messageId : inFlight.keySet()) {
+			DownstreamMessage message = inFlight.remove(messageId);
+			if (message != null) {
+				taken.add(message);
+				synchronized (this) {
+					credits++;
+				}
+			}
+		}
+		return taken;
+	}
+
+	/**
+	 * Returns the number of messages waiting for their ack/nack.
+	 */
+	int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	/**
+	 * Returns the number of messages waiting for a credit.
+	 */
+	synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Returns the maximum number of unacknowledged messages.
+	 */
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sends a message for which a credit has already been taken.
+	 *
+	 * <p>
+	 * On failure the credit is given back, the message goes back to the head
+	 * of the queue and the window pauses until resume() is called.
+	 */
+	private boolean transmit(DownstreamMessage message) {
+		message.sentAt = System.nanoTime();
+		inFlight.put(message.messageId, message);
+		try {
+			transmitter.transmit(message.json);
+			return true;
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Unable to send " + message.messageId
+					+ ", queuing it until the connection is back", e);
+			inFlight.remove(message.messageId);
+			synchronized (this) {
+				credits++;
+				pending.addFirst(message);
+				paused = true;
+			}
+			return false;
+		}
+	}
+}
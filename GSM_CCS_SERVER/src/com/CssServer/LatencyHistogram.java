@@ -0,0 +1,107 @@
+package com.CssServer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations, in nanoseconds.
+ *
+ * <p>
+ * The buckets are log-linear: every power of two is split into SUB_BUCKETS
+ * buckets of equal width, so a percentile is known within 1/SUB_BUCKETS of
+ * its value whatever its magnitude, up to 2^MAX_EXPONENT nanoseconds. A
+ * record is one bucket increment, no allocation and no lock; the durations
+ * are kept since the creation of the histogram.
+ */
+class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// 2^40 ns is about 18 minutes, longer durations are counted as that
+	private static final int MAX_EXPONENT = 40;
+	private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos
+	 *            The duration, negative ones are counted as 0.
+	 */
+	void record(long nanos) {
+		long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+		counts.incrementAndGet(index(value));
+		sum.add(value);
+		long previous = max.get();
+		while (value > previous && !max.compareAndSet(previous, value)) {
+			previous = max.get();
+		}
+	}
+
+	/**
+	 * Records the time elapsed since a System.nanoTime().
+	 */
+	void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Returns the count, mean, percentiles and maximum of the durations.
+	 *
+	 * <p>
+	 * The durations recorded meanwhile may be partly included.
+	 */
+	LatencySummary summarize() {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		long maxValue = max.get();
+		if (count == 0) {
+			return new LatencySummary(0, 0, 0, 0, 0, 0, 0);
+		}
+		return new LatencySummary(count, sum.sum() / (double) count,
+				percentile(snapshot, count, 0.5, maxValue),
+				percentile(snapshot, count, 0.9, maxValue),
+				percentile(snapshot, count, 0.99, maxValue),
+				percentile(snapshot, count, 0.999, maxValue), maxValue);
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * Returns the highest value of a bucket.
+	 */
+	private static long highestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long subBucket = SUB_BUCKETS + index % SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	private static long percentile(long[] snapshot, long count, double fraction, long maxValue) {
+		long rank = Math.max((long) Math.ceil(fraction * count), 1);
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), maxValue);
+			}
+		}
+		return maxValue;
+	}
+}
@@ -0,0 +1,331 @@
+package com.CssServer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Assigns the devices to the group nearest to their reported location.
+ *
+ * <p>
+ * A device reports its location with an upstream data message whose payload
+ * is {"action": "location_update", "latitude": ..., "longitude": ...}. The
+ * updates are only recorded when they come in, the last one of each device
+ * replacing the previous ones. An update received before the one already
+ * recorded, but decoded after it, is dropped. Once per flush interval, the latest location
+ * of every device that reported one is matched against the
+ * GroupLocationIndex, and the Membership table is only written when the
+ * nearest group changed.
+ *
+ * <p>
+ * A device moving less than half the gap between its nearest and second
+ * nearest group can't change group, so such updates don't even query the
+ * index.
+ *
+ * <p>
+ * The assignments are kept for the maxAssignments devices that reported most
+ * recently. A device that stopped reporting, or whose membership was
+ * removed, eventually drops out; its next update is then matched against the
+ * index again.
+ */
+class LocationTracker {
+	private static final Logger logger = CcsServer.logger;
+	public static final String ACTION = "action";
+	public static final String LOCATION_UPDATE = "location_update";
+	public static final String LATITUDE = "latitude";
+	public static final String LONGITUDE = "longitude";
+
+	/**
+	 * Group of a device when it was last matched, and how far the device can
+	 * move before it has to be matched again.
+	 */
+	private static class Assignment {
+		GroupNameEntry group;
+		double latitude;
+		double longitude;
+		double slackKm = -1;
+		long indexVersion = -1;
+		// receivedAt of the location matched
+		long receivedAt;
+	}
+
+	/**
+	 * A location reported by a device.
+	 */
+	private static class Location {
+		final double latitude;
+		final double longitude;
+		// System.nanoTime() when the message was received
+		final long receivedAt;
+
+		Location(double latitude, double longitude, long receivedAt) {
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.receivedAt = receivedAt;
+		}
+	}
+
+	private final Database database;
+	private final long flushMillis;
+	// latest location of the devices since the last flush
+	private final ConcurrentHashMap<String, Location> latest = new ConcurrentHashMap<String, Location>();
+	// only used by the flush thread, least recently matched first
+	private final Map<String, Assignment> assignments;
+	private final ScheduledExecutorService executor;
+	private final AtomicLong updates = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong reassigned = new AtomicLong();
+
+	/**
+	 * Creates the tracker. Nothing is flushed until start() is called.
+	 *
+	 * @param database
+	 *            The database holding the groups and the memberships.
+	 * @param flushMillis
+	 *            Interval between two flushes of the updates.
+	 * @param maxAssignments
+	 *            Maximum number of devices whose assignment is remembered.
+	 */
+	LocationTracker(Database database, long flushMillis, final int maxAssignments) {
+		this.database = database;
+		this.flushMillis = flushMillis;
+		this.assignments = new LinkedHashMap<String, Assignment>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Assignment> eldest) {
+				return size() > maxAssignments;
+			}
+		};
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ccs-location");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts flushing the updates.
+	 */
+	void start() {
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (RuntimeException e) {
+					logger.log(Level.SEVERE, "Failed to apply the location updates", e);
+				}
+			}
+		}, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Applies the pending updates and stops the flushes.
+	 */
+	void stop() {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+		executor.shutdown();
+		try {
+			executor.awaitTermination(flushMillis + 5000, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns true if an upstream data message is a location update.
+	 */
+	static boolean isLocationUpdate(Map<String, String> payload) {
+		return payload != null && LOCATION_UPDATE.equals(payload.get(ACTION));
+	}
+
+	/**
+	 * Records the location reported by a device.
+	 *
+	 * @param userid
+	 *            The device, i.e. the "from" of the message.
+	 * @param payload
+	 *            The payload of a location update.
+	 * @param receivedAt
+	 *            System.nanoTime() when the message was received.
+	 * @return false if the location is missing or invalid.
+	 */
+	boolean update(String userid, Map<String, String> payload, long receivedAt) {
+		double latitude;
+		double longitude;
+		try {
+			// the device may send the coordinates as strings or as numbers
+			latitude = Double.parseDouble(String.valueOf(((Map<?, ?>) payload).get(LATITUDE)));
+			longitude = Double.parseDouble(String.valueOf(((Map<?, ?>) payload).get(LONGITUDE)));
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		if (!(Math.abs(latitude) <= 90.0) || !(Math.abs(longitude) <= 180.0)) {
+			return false;
+		}
+		updates.incrementAndGet();
+		Location location = new Location(latitude, longitude, receivedAt);
+		Location previous;
+		do {
+			previous = latest.putIfAbsent(userid, location);
+			if (previous == null) {
+				return true;
+			}
+			if (previous.receivedAt > receivedAt) {
+				// a later location is already recorded
+				coalesced.incrementAndGet();
+				return true;
+			}
+		} while (!latest.replace(userid, previous, location));
+		coalesced.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Returns the number of valid location updates received.
+	 */
+	long getUpdateCount() {
+		return updates.get();
+	}
+
+	/**
+	 * Returns the number of updates replaced by a later one before a flush.
+	 */
+	long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Returns the number of membership changes made.
+	 */
+	long getReassignedCount() {
+		return reassigned.get();
+	}
+
+	/**
+	 * Matches the devices that reported a location since the last flush.
+	 * 
+	 * <p>
+	 * The moves to another group go through the write-behind buffer of the
+	 * Database, the first memberships are queued and waited for at the end.
+	 */
+	private void flush() {
+		GroupLocationIndex index = database.getGroupLocationIndex();
+		List<DatabaseWrite> writes = new ArrayList<DatabaseWrite>();
+		Set<String> matched = new HashSet<String>();
+		Iterator<Map.Entry<String, Location>> iterator = latest.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Location> entry = iterator.next();
+			String userid = entry.getKey();
+			Location location = entry.getValue();
+			if (!matched.add(userid)) {
+				// reported again during this flush, its first membership may
+				// not be written yet
+				continue;
+			}
+			// only remove the location read, a newer one waits for the next flush
+			latest.remove(userid, location);
+			DatabaseWrite write = reassign(index, userid, location);
+			if (write != null) {
+				writes.add(write);
+			}
+		}
+		int changes = 0;
+		try {
+			for (DatabaseWrite write : writes) {
+				if (write.await()) {
+					changes++;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (changes > 0) {
+			reassigned.addAndGet(changes);
+			logger.log(Level.FINE, "Added {0} devices to their first group", changes);
+		}
+	}
+
+	/**
+	 * Matches one device with its nearest group.
+	 *
+	 * <p>
+	 * If the write fails, the cached membership won't match the assignment
+	 * and the next update of the device will try again.
+	 *
+	 * @return the write adding the device to its first group, or null.
+	 */
+	private DatabaseWrite reassign(GroupLocationIndex index, String userid, Location location) {
+		Assignment assignment = assignments.get(userid);
+		if (assignment != null && location.receivedAt < assignment.receivedAt) {
+			// received before the location already matched
+			return null;
+		}
+		double latitude = location.latitude;
+		double longitude = location.longitude;
+		MembershipEntry current = database.getMembership(userid);
+		long version = index.getVersion();
+		// the membership may also have been changed through the Database
+		if (assignment != null && current != null && sameGroup(current.membership, assignment.group)
+				&& assignment.indexVersion == version
+				&& GroupLocationIndex.distanceKm(assignment.latitude, assignment.longitude,
+						latitude, longitude) < assignment.slackKm) {
+			return null;
+		}
+
+		List<GroupLocationIndex.Match> nearest = index.findNearest(latitude, longitude, 2);
+		if (nearest.isEmpty()) {
+			return null;
+		}
+		GroupNameEntry group = nearest.get(0).group;
+		DatabaseWrite write = null;
+		if (current == null) {
+			write = database.queueAddEntryToMembershipTable(new MembershipEntry(userid, group));
+		} else if (!sameGroup(current.membership, group)
+				&& database.bufferUpdateEntryOfMembershipTable(userid, group.name,
+						group.latitude, group.longitude)) {
+			reassigned.incrementAndGet();
+		}
+
+		if (assignment == null) {
+			assignment = new Assignment();
+			assignments.put(userid, assignment);
+		}
+		assignment.group = group;
+		assignment.latitude = latitude;
+		assignment.longitude = longitude;
+		assignment.indexVersion = version;
+		assignment.receivedAt = location.receivedAt;
+		if (nearest.size() > 1) {
+			assignment.slackKm = (nearest.get(1).distanceKm - nearest.get(0).distanceKm) / 2;
+		} else {
+			assignment.slackKm = Double.MAX_VALUE;
+		}
+		return write;
+	}
+
+	private static boolean sameGroup(GroupNameEntry a, GroupNameEntry b) {
+		return a.name.equals(b.name) && a.latitude == b.latitude && a.longitude == b.longitude;
+	}
+}
@@ -0,0 +1,138 @@
+package com.CssServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The memberships of a snapshot, looked up in the mapped file.
+ *
+ * <p>
+ * The records are ordered by group, so the members of a group are a range
+ * of records, and a hash index of the userids finds the record of a user.
+ * A lookup only decodes the records it compares, nothing is loaded up
+ * front. The reads are absolute, so the buffer can be shared by threads.
+ *
+ * <p>
+ * Layout, see DatabaseSnapshot: the first record of each group and the end
+ * of the last one; the position of each record; the index, a hash and a
+ * record number per slot, -1 for an empty slot; the records, userid and
+ * group id.
+ */
+class MappedMemberships {
+	private static final int SLOT_SIZE = 8;
+	private static final int EMPTY = -1;
+
+	private final ByteBuffer buffer;
+	private final int size;
+	private final int groupStarts;
+	private final int recordPositions;
+	private final int slots;
+	private final int index;
+
+	/**
+	 * Wraps the sections of a mapped snapshot.
+	 *
+	 * @param position
+	 *            Position of the first section in the buffer.
+	 */
+	MappedMemberships(ByteBuffer buffer, int position, int groupCount, int size, int slots) {
+		this.buffer = buffer;
+		this.size = size;
+		this.slots = slots;
+		this.groupStarts = position;
+		this.recordPositions = groupStarts + (groupCount + 1) * 4;
+		this.index = recordPositions + size * 4;
+	}
+
+	/**
+	 * Returns the number of index slots for a number of memberships, at
+	 * least twice as many.
+	 */
+	static int slotsFor(int size) {
+		int slots = 2;
+		while (slots < size * 2) {
+			slots <<= 1;
+		}
+		return slots;
+	}
+
+	/**
+	 * Returns the slot where the probing for a hash starts.
+	 */
+	static int firstSlot(int hash, int slots) {
+		return (hash ^ (hash >>> 16)) & (slots - 1);
+	}
+
+	/**
+	 * Returns the position of the records in a snapshot, after the index.
+	 *
+	 * @param position
+	 *            Position of the first section.
+	 */
+	static long getRecordsPosition(int position, int groupCount, int size, int slots) {
+		return position + (groupCount + 1) * 4L + size * 4L + slots * (long) SLOT_SIZE;
+	}
+
+	/**
+	 * Returns the position after the last record.
+	 */
+	int getEnd() {
+		if (size == 0) {
+			return index + slots * SLOT_SIZE;
+		}
+		int position = buffer.getInt(recordPositions + (size - 1) * 4);
+		return position + 4 + buffer.getInt(position) + 4;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the record of a user, or -1 if it isn't in the snapshot.
+	 */
+	int find(String userid) {
+		int hash = userid.hashCode();
+		for (int slot = firstSlot(hash, slots);; slot = (slot + 1) & (slots - 1)) {
+			int position = index + slot * SLOT_SIZE;
+			int record = buffer.getInt(position + 4);
+			if (record == EMPTY) {
+				return -1;
+			}
+			if (buffer.getInt(position) == hash && getUserid(record).equals(userid)) {
+				return record;
+			}
+		}
+	}
+
+	String getUserid(int record) {
+		int position = buffer.getInt(recordPositions + record * 4);
+		byte[] bytes = new byte[buffer.getInt(position)];
+		ByteBuffer in = buffer.duplicate();
+		in.position(position + 4);
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the snapshot id of the group of a record.
+	 */
+	int getGroup(int record) {
+		int position = buffer.getInt(recordPositions + record * 4);
+		return buffer.getInt(position + 4 + buffer.getInt(position));
+	}
+
+	/**
+	 * Returns the first record of the members of a group.
+	 */
+	int getFirstMember(int group) {
+		return buffer.getInt(groupStarts + group * 4);
+	}
+
+	/**
+	 * Returns the record after the members of a group.
+	 */
+	int getEndOfMembers(int group) {
+		return buffer.getInt(groupStarts + (group + 1) * 4);
+	}
+}
@@ -0,0 +1,531 @@
+package com.CssServer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory copy of the GroupName and Membership tables.
+ *
+ * <p>
+ * Database writes the changes through, after they succeed in SQLite, and the
+ * buffered membership updates as soon as they are buffered, so the reads
+ * never need to query the tables. Reads don't lock and can run concurrently
+ * with a write; the writes are serialized by the lock of the cache.
+ *
+ * <p>
+ * The groups and the memberships only hold the id of their group in the
+ * GroupRegistry. The entries returned are built from it on each call, the
+ * members of a group sharing their GroupNameEntry; they must not be
+ * modified.
+ *
+ * <p>
+ * A membership only keeps the name of its group: it is read back with the
+ * location of the group in the GroupName table, whatever location it was
+ * written with.
+ *
+ * <p>
+ * After restore(), the memberships are served from the mapped snapshot
+ * until loadSnapshot() has copied them into the maps: a user missing from
+ * the maps is looked up in the snapshot, unless it was removed since.
+ */
+class MembershipCache {
+	private final GroupRegistry registry = new GroupRegistry();
+	// group id by name
+	private final ConcurrentHashMap<String, Integer> groups = new ConcurrentHashMap<String, Integer>();
+	// group id by userid
+	private final ConcurrentHashMap<String, Integer> memberships = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentHashMap<String, Set<String>> membersByGroup = new ConcurrentHashMap<String, Set<String>>();
+	// sequence number of the last write, and while they are tracked, of the
+	// last write of each group and membership, see trackWrites()
+	private long writeSeq = 0;
+	private Map<String, Long> groupWrites;
+	private Map<String, Long> membershipWrites;
+	private long groupsClearedAt = -1;
+	private long membershipsClearedAt = -1;
+	private volatile SnapshotOverlay overlay;
+
+	/**
+	 * The memberships of a restored snapshot, until they are all copied into
+	 * the maps.
+	 */
+	private static class SnapshotOverlay {
+		final MappedMemberships memberships;
+		// registry id of each group of the snapshot
+		final Integer[] groupIds;
+		// snapshot group of each name, they are unique in a snapshot
+		final Map<String, Integer> groupsByName;
+		// users of the snapshot removed since it was restored
+		final Set<String> removed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		// users of the snapshot also in the maps, or removed
+		int shadowed;
+
+		SnapshotOverlay(MappedMemberships memberships, Integer[] groupIds,
+				Map<String, Integer> groupsByName) {
+			this.memberships = memberships;
+			this.groupIds = groupIds;
+			this.groupsByName = groupsByName;
+		}
+	}
+
+	/**
+	 * Adds a group, replacing the one with the same name.
+	 */
+	synchronized void putGroup(GroupNameEntry group) {
+		Integer id = registry.locate(group);
+		groups.put(registry.getName(id), id);
+		groupWritten(group.name);
+	}
+
+	/**
+	 * Removes a group, if its name and location match.
+	 */
+	synchronized void removeGroup(GroupNameEntry group) {
+		// the id stays, the members of the group keep its last location
+		Integer cached = groups.get(group.name);
+		if (cached != null && registry.getLatitude(cached) == group.latitude
+				&& registry.getLongitude(cached) == group.longitude) {
+			groups.remove(group.name, cached);
+			groupWritten(group.name);
+		}
+	}
+
+	synchronized void clearGroups() {
+		groups.clear();
+		groupsClearedAt = ++writeSeq;
+	}
+
+	/**
+	 * Sets the group of a user, moving it out of its previous group.
+	 */
+	synchronized void putMembership(MembershipEntry membership) {
+		GroupNameEntry group = membership.membership;
+		Integer id = registry.register(group.name, group.latitude, group.longitude);
+		SnapshotOverlay current = overlay;
+		if (current != null) {
+			shadow(current, membership.userid);
+		}
+		// in its group first, see copyMembersOfGroup()
+		addMember(membership.userid, id);
+		Integer previous = memberships.put(membership.userid, id);
+		if (previous != null && !previous.equals(id)) {
+			removeMember(membership.userid, previous);
+		}
+		membershipWritten(membership.userid);
+	}
+
+	/**
+	 * Sets the group of a user, only if it already has one.
+	 *
+	 * @return false if the user has no membership.
+	 */
+	synchronized boolean replaceMembership(MembershipEntry membership) {
+		if (!hasMembership(membership.userid)) {
+			return false;
+		}
+		putMembership(membership);
+		return true;
+	}
+
+	/**
+	 * Removes a user from its group.
+	 */
+	synchronized void removeMembership(String userid) {
+		SnapshotOverlay current = overlay;
+		// before the maps, so that a lookup never falls back on the snapshot
+		if (current != null && shadow(current, userid)) {
+			current.removed.add(userid);
+		}
+		Integer previous = memberships.remove(userid);
+		if (previous != null) {
+			removeMember(userid, previous);
+		}
+		membershipWritten(userid);
+	}
+
+	synchronized void clearMemberships() {
+		overlay = null;
+		memberships.clear();
+		membersByGroup.clear();
+		membershipsClearedAt = ++writeSeq;
+	}
+
+	/**
+	 * Starts or stops recording which groups and memberships are written.
+	 *
+	 * <p>
+	 * A replay reads the rows of the tables without the lock of the cache,
+	 * then only applies those that weren't written since, see
+	 * isGroupWrittenSince().
+	 */
+	synchronized void trackWrites(boolean enabled) {
+		groupWrites = enabled ? new HashMap<String, Long>() : null;
+		membershipWrites = enabled ? new HashMap<String, Long>() : null;
+	}
+
+	/**
+	 * Returns the sequence number of the last write of the cache.
+	 */
+	synchronized long getWriteSeq() {
+		return writeSeq;
+	}
+
+	/**
+	 * Returns true if a group was written after the write numbered seq, or
+	 * if the writes aren't tracked.
+	 */
+	synchronized boolean isGroupWrittenSince(String name, long seq) {
+		return isWrittenSince(groupWrites, groupsClearedAt, name, seq);
+	}
+
+	/**
+	 * Returns true if a membership was written after the write numbered seq,
+	 * or if the writes aren't tracked.
+	 */
+	synchronized boolean isMembershipWrittenSince(String userid, long seq) {
+		return isWrittenSince(membershipWrites, membershipsClearedAt, userid, seq);
+	}
+
+	/**
+	 * Returns the group with the specified name, or null.
+	 */
+	GroupNameEntry getGroup(String name) {
+		Integer id = groups.get(name);
+		return id != null ? registry.getGroup(id) : null;
+	}
+
+	/**
+	 * Returns the membership of a user, or null if it isn't in a group.
+	 */
+	MembershipEntry getMembership(String userid) {
+		Integer id = memberships.get(userid);
+		if (id == null) {
+			id = getFromSnapshot(userid);
+		}
+		return id != null ? new MembershipEntry(userid, registry.getGroup(id)) : null;
+	}
+
+	/**
+	 * Returns a live, read-only view of the user ids of a group's members,
+	 * or a copy while the snapshot isn't loaded.
+	 */
+	Set<String> getMembersOfGroup(String groupName) {
+		SnapshotOverlay current = overlay;
+		if (current != null) {
+			return copyMembersOfGroup(current, groupName);
+		}
+		Set<String> members = membersByGroup.get(groupName);
+		if (members == null) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(members);
+	}
+
+	/**
+	 * Returns all the groups.
+	 */
+	Collection<GroupNameEntry> getGroups() {
+		List<GroupNameEntry> entries = new ArrayList<GroupNameEntry>(groups.size());
+		for (Integer id : groups.values()) {
+			entries.add(registry.getGroup(id));
+		}
+		return entries;
+	}
+
+	/**
+	 * Returns all the memberships.
+	 *
+	 * <p>
+	 * Locks the cache while the snapshot isn't loaded, so that no membership
+	 * moves from the snapshot to the maps during the copy.
+	 */
+	Collection<MembershipEntry> getMemberships() {
+		if (overlay == null) {
+			return copyMemberships();
+		}
+		synchronized (this) {
+			return copyMemberships();
+		}
+	}
+
+	/**
+	 * Returns the number of memberships.
+	 */
+	int getMembershipCount() {
+		if (overlay == null) {
+			return memberships.size();
+		}
+		synchronized (this) {
+			SnapshotOverlay current = overlay;
+			int count = memberships.size();
+			if (current != null) {
+				count += current.memberships.size() - current.shadowed;
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Copies the cache into a snapshot.
+	 *
+	 * @param changeSeq
+	 *            The last change of the tables included in the cache.
+	 * @param dirtyUserids
+	 *            The users whose cached membership isn't committed.
+	 */
+	synchronized DatabaseSnapshot snapshot(long changeSeq, Collection<String> dirtyUserids) {
+		int groupCount = registry.size();
+		String[] groupNames = new String[groupCount];
+		double[] groupLatitudes = new double[groupCount];
+		double[] groupLongitudes = new double[groupCount];
+		for (int id = 0; id < groupCount; id++) {
+			groupNames[id] = registry.getName(id);
+			groupLatitudes[id] = registry.getLatitude(id);
+			groupLongitudes[id] = registry.getLongitude(id);
+		}
+		int[] tableGroups = new int[groups.size()];
+		int group = 0;
+		for (Integer id : groups.values()) {
+			tableGroups[group++] = id;
+		}
+		String[] userids = new String[getMembershipCount()];
+		int[] memberGroups = new int[userids.length];
+		int member = 0;
+		for (Map.Entry<String, Integer> membership : memberships.entrySet()) {
+			userids[member] = membership.getKey();
+			memberGroups[member++] = membership.getValue();
+		}
+		SnapshotOverlay current = overlay;
+		if (current != null) {
+			MappedMemberships snapshot = current.memberships;
+			for (int record = 0; record < snapshot.size(); record++) {
+				String userid = snapshot.getUserid(record);
+				if (!memberships.containsKey(userid) && !current.removed.contains(userid)) {
+					userids[member] = userid;
+					memberGroups[member++] = current.groupIds[snapshot.getGroup(record)];
+				}
+			}
+		}
+		return new DatabaseSnapshot(changeSeq, groupNames, groupLatitudes, groupLongitudes,
+				tableGroups, userids, memberGroups, dirtyUserids.toArray(new String[0]));
+	}
+
+	/**
+	 * Replaces the content of the cache with a snapshot read from its file.
+	 *
+	 * <p>
+	 * Only the groups are copied, the memberships are served from the
+	 * mapped file until loadSnapshot() is called.
+	 */
+	synchronized void restore(DatabaseSnapshot snapshot) {
+		groups.clear();
+		memberships.clear();
+		membersByGroup.clear();
+		Integer[] ids = new Integer[snapshot.groupNames.length];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = registry.register(snapshot.groupNames[i], snapshot.groupLatitudes[i],
+					snapshot.groupLongitudes[i]);
+		}
+		// a snapshot may hold several locations of a name, the table's wins
+		for (int group : snapshot.tableGroups) {
+			Integer id = registry.locate(new GroupNameEntry(snapshot.groupNames[group],
+					snapshot.groupLatitudes[group], snapshot.groupLongitudes[group]));
+			groups.put(registry.getName(id), id);
+		}
+		Map<String, Integer> groupsByName = new HashMap<String, Integer>();
+		for (int i = 0; i < ids.length; i++) {
+			groupsByName.put(snapshot.groupNames[i], i);
+		}
+		overlay = new SnapshotOverlay(snapshot.mappedMemberships, ids, groupsByName);
+	}
+
+	/**
+	 * Copies the memberships of the restored snapshot into the maps, then
+	 * stops serving them from the snapshot.
+	 *
+	 * <p>
+	 * The cache is only locked for a chunk of memberships at a time. The
+	 * users written or removed since the restore are skipped.
+	 *
+	 * @return the number of memberships copied.
+	 */
+	int loadSnapshot(int chunkSize) {
+		SnapshotOverlay current = overlay;
+		if (current == null) {
+			return 0;
+		}
+		MappedMemberships snapshot = current.memberships;
+		int copied = 0;
+		for (int start = 0; start < snapshot.size(); start += chunkSize) {
+			synchronized (this) {
+				if (overlay != current) {
+					// the memberships were cleared
+					return copied;
+				}
+				int end = Math.min(start + chunkSize, snapshot.size());
+				for (int record = start; record < end; record++) {
+					String userid = snapshot.getUserid(record);
+					if (memberships.containsKey(userid) || current.removed.contains(userid)) {
+						continue;
+					}
+					Integer id = current.groupIds[snapshot.getGroup(record)];
+					// in its group first, see copyMembersOfGroup()
+					addMember(userid, id);
+					memberships.put(userid, id);
+					current.shadowed++;
+					copied++;
+				}
+			}
+		}
+		synchronized (this) {
+			if (overlay == current) {
+				overlay = null;
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * Returns the group id of a user in the snapshot, or null if it isn't in
+	 * it, was removed since, or the snapshot is loaded.
+	 */
+	private Integer getFromSnapshot(String userid) {
+		SnapshotOverlay current = overlay;
+		if (current == null || current.removed.contains(userid)) {
+			return null;
+		}
+		int record = current.memberships.find(userid);
+		return record >= 0 ? current.groupIds[current.memberships.getGroup(record)] : null;
+	}
+
+	private boolean hasMembership(String userid) {
+		return memberships.containsKey(userid) || getFromSnapshot(userid) != null;
+	}
+
+	/**
+	 * Counts a user of the snapshot the first time it is written to the maps
+	 * or removed.
+	 *
+	 * @return true if the user is in the snapshot.
+	 */
+	private boolean shadow(SnapshotOverlay current, String userid) {
+		if (current.memberships.find(userid) < 0) {
+			return false;
+		}
+		if (!memberships.containsKey(userid) && !current.removed.contains(userid)) {
+			current.shadowed++;
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the members of a group, the users of the snapshot not copied
+	 * into the maps yet included.
+	 *
+	 * <p>
+	 * The snapshot is read before the maps, and a user is added to its
+	 * group before it is put in the memberships: a user skipped in the
+	 * snapshot because it is in the maps is then found in its group.
+	 */
+	private Set<String> copyMembersOfGroup(SnapshotOverlay current, String groupName) {
+		Set<String> copy = new HashSet<String>();
+		Integer group = current.groupsByName.get(groupName);
+		if (group != null) {
+			MappedMemberships snapshot = current.memberships;
+			int end = snapshot.getEndOfMembers(group);
+			for (int record = snapshot.getFirstMember(group); record < end; record++) {
+				String userid = snapshot.getUserid(record);
+				if (!memberships.containsKey(userid) && !current.removed.contains(userid)) {
+					copy.add(userid);
+				}
+			}
+		}
+		Set<String> members = membersByGroup.get(groupName);
+		if (members != null) {
+			copy.addAll(members);
+		}
+		return Collections.unmodifiableSet(copy);
+	}
+
+	private Collection<MembershipEntry> copyMemberships() {
+		List<MembershipEntry> entries = new ArrayList<MembershipEntry>(memberships.size());
+		// one entry per group, shared by its members
+		GroupNameEntry[] groupEntries = new GroupNameEntry[registry.size()];
+		for (Map.Entry<String, Integer> membership : memberships.entrySet()) {
+			entries.add(new MembershipEntry(membership.getKey(),
+					getGroupEntry(groupEntries, membership.getValue())));
+		}
+		SnapshotOverlay current = overlay;
+		if (current != null) {
+			MappedMemberships snapshot = current.memberships;
+			for (int record = 0; record < snapshot.size(); record++) {
+				String userid = snapshot.getUserid(record);
+				if (!memberships.containsKey(userid) && !current.removed.contains(userid)) {
+					entries.add(new MembershipEntry(userid, getGroupEntry(groupEntries,
+							current.groupIds[snapshot.getGroup(record)])));
+				}
+			}
+		}
+		return entries;
+	}
+
+	private GroupNameEntry getGroupEntry(GroupNameEntry[] groupEntries, int id) {
+		if (id >= groupEntries.length) {
+			// registered during the copy
+			return registry.getGroup(id);
+		}
+		GroupNameEntry group = groupEntries[id];
+		if (group == null) {
+			group = registry.getGroup(id);
+			groupEntries[id] = group;
+		}
+		return group;
+	}
+
+	private void addMember(String userid, Integer id) {
+		String name = registry.getName(id);
+		Set<String> members = membersByGroup.get(name);
+		if (members == null) {
+			membersByGroup.putIfAbsent(name,
+					Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+			members = membersByGroup.get(name);
+		}
+		members.add(userid);
+	}
+
+	private void groupWritten(String name) {
+		writeSeq++;
+		if (groupWrites != null) {
+			groupWrites.put(name, writeSeq);
+		}
+	}
+
+	private void membershipWritten(String userid) {
+		writeSeq++;
+		if (membershipWrites != null) {
+			membershipWrites.put(userid, writeSeq);
+		}
+	}
+
+	private static boolean isWrittenSince(Map<String, Long> writes, long clearedAt, String key,
+			long seq) {
+		if (writes == null || clearedAt > seq) {
+			return true;
+		}
+		Long written = writes.get(key);
+		return written != null && written > seq;
+	}
+
+	private void removeMember(String userid, Integer id) {
+		Set<String> members = membersByGroup.get(registry.getName(id));
+		if (members != null) {
+			members.remove(userid);
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package com.CssServer;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind buffer of the membership updates.
+ *
+ * <p>
+ * Only the latest buffered membership of each user is kept: a burst of
+ * updates of one user becomes a single UPDATE. The buffer is flushed to the
+ * BatchWriter when it holds flushSize users, or every flushMillis, so that a
+ * flush is committed in one transaction as long as it isn't larger than a
+ * batch.
+ *
+ * <p>
+ * The cache is updated when an update is buffered, so a read following an
+ * update returns it even before it is written. A buffered membership stays
+ * pending until its write is committed; meanwhile the committed writes of
+ * the same user don't overwrite it in the cache. A direct write of a user
+ * first submits its buffered update, so that the writes reach the table in
+ * the order of the calls.
+ */
+class MembershipWriteBuffer {
+	private static final Logger logger = Database.logger;
+
+	/**
+	 * A buffered membership, until its write is committed.
+	 */
+	private static class Pending {
+		final MembershipEntry entry;
+		// guarded by the buffer
+		boolean submitted = false;
+
+		Pending(MembershipEntry entry) {
+			this.entry = entry;
+		}
+	}
+
+	private final BatchWriter batchWriter;
+	private final MembershipCache cache;
+	private final int flushSize;
+	private final long flushMillis;
+	private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+	// guarded by this
+	private int unsubmitted = 0;
+	private boolean flushScheduled = false;
+	private volatile boolean running = false;
+	private final ScheduledExecutorService executor;
+	private final AtomicLong buffered = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "Failed to flush the membership updates", e);
+			}
+		}
+	};
+
+	/**
+	 * Creates the buffer. Nothing is flushed on a timer until start() is
+	 * called.
+	 *
+	 * @param batchWriter
+	 *            The writer the buffered updates are submitted to.
+	 * @param cache
+	 *            The cache updated when an update is buffered.
+	 * @param flushSize
+	 *            Number of buffered users triggering a flush.
+	 * @param flushMillis
+	 *            Maximum time an update stays buffered.
+	 */
+	MembershipWriteBuffer(BatchWriter batchWriter, MembershipCache cache, int flushSize,
+			long flushMillis) {
+		this.batchWriter = batchWriter;
+		this.cache = cache;
+		this.flushSize = flushSize;
+		this.flushMillis = flushMillis;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "db-write-behind");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	void start() {
+		running = true;
+		executor.scheduleWithFixedDelay(flushTask, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the timer and writes the buffered updates, waiting for them.
+	 */
+	void stop() {
+		running = false;
+		executor.shutdown();
+		try {
+			executor.awaitTermination(flushMillis + 5000, TimeUnit.MILLISECONDS);
+			for (DatabaseWrite write : flush()) {
+				write.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Buffers the new membership of a user and puts it in the cache.
+	 *
+	 * @return false if the user has no membership, like an UPDATE of the
+	 *         table would change nothing.
+	 */
+	boolean put(MembershipEntry entry) {
+		synchronized (this) {
+			Pending previous;
+			synchronized (cache) {
+				if (!cache.replaceMembership(entry)) {
+					return false;
+				}
+				previous = pending.put(entry.userid, new Pending(entry));
+			}
+			if (previous != null && !previous.submitted) {
+				coalesced.incrementAndGet();
+			} else {
+				unsubmitted++;
+			}
+			buffered.incrementAndGet();
+			if (unsubmitted < flushSize || flushScheduled) {
+				return true;
+			}
+			flushScheduled = running;
+		}
+		if (running) {
+			executor.execute(flushTask);
+		} else {
+			// the timer may be gone already
+			flush();
+		}
+		return true;
+	}
+
+	/**
+	 * Submits a direct write of the membership of a user, after its buffered
+	 * update.
+	 */
+	synchronized DatabaseWrite submit(String userid, DatabaseWrite write) {
+		Pending update = pending.get(userid);
+		if (update != null && !update.submitted) {
+			update.submitted = true;
+			unsubmitted--;
+			batchWriter.submit(write(update));
+		}
+		return batchWriter.submit(write);
+	}
+
+	/**
+	 * Updates the cache with a committed direct write, unless a later update
+	 * of the user is buffered: the cache then shows the buffered one until
+	 * it is committed too.
+	 *
+	 * <p>
+	 * Called by the writer thread, so it only locks the cache: a flush can be
+	 * blocked on the writer's queue while holding the buffer.
+	 *
+	 * @param entry
+	 *            The new membership, or null if it was removed.
+	 */
+	void committed(String userid, MembershipEntry entry) {
+		synchronized (cache) {
+			if (!pending.containsKey(userid)) {
+				setCached(userid, entry);
+			}
+		}
+	}
+
+	/**
+	 * Returns the users whose buffered update isn't committed yet. Called
+	 * with the cache locked, so that it matches the cache.
+	 */
+	Set<String> getPendingUserids() {
+		return new HashSet<String>(pending.keySet());
+	}
+
+	/**
+	 * Forgets all the buffered updates, once the table is removed.
+	 */
+	synchronized void clear() {
+		pending.clear();
+		unsubmitted = 0;
+	}
+
+	/**
+	 * Submits the buffered updates to the BatchWriter.
+	 *
+	 * @return the writes, to wait for their completion.
+	 */
+	synchronized List<DatabaseWrite> flush() {
+		flushScheduled = false;
+		List<DatabaseWrite> writes = new ArrayList<DatabaseWrite>(unsubmitted);
+		if (unsubmitted == 0) {
+			return writes;
+		}
+		for (Pending update : pending.values()) {
+			if (!update.submitted) {
+				update.submitted = true;
+				writes.add(batchWriter.submit(write(update)));
+			}
+		}
+		unsubmitted = 0;
+		return writes;
+	}
+
+	/**
+	 * Returns the number of updates buffered.
+	 */
+	long getBufferedCount() {
+		return buffered.get();
+	}
+
+	/**
+	 * Returns the number of buffered updates replaced by a later one before
+	 * they were written.
+	 */
+	long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Returns the number of users whose buffered update isn't committed yet.
+	 */
+	int getPendingCount() {
+		return pending.size();
+	}
+
+	private DatabaseWrite write(final Pending update) {
+		final MembershipEntry entry = update.entry;
+		return new DatabaseWrite(Database.UPDATE_MEMBERSHIP, "write behind " + entry.userid
+				+ " of " + Database.MEMBERSHIP_TABLE) {
+			@Override
+			void bind(PreparedStatement statement) throws SQLException {
+				Database.bindUpdateMembership(statement, entry.userid, entry.membership.name,
+						entry.membership.latitude, entry.membership.longitude);
+			}
+
+			@Override
+			void applied(int updateCount) {
+				synchronized (cache) {
+					// the user may have been removed since it was buffered
+					if (pending.remove(entry.userid, update)) {
+						setCached(entry.userid, updateCount != 0 ? entry : null);
+					}
+				}
+			}
+
+			@Override
+			void complete(boolean succeeded) {
+				if (!succeeded && pending.remove(entry.userid, update)) {
+					logger.severe("Lost the buffered membership of " + entry.userid
+							+ ", the cache no longer matches the table");
+				}
+				super.complete(succeeded);
+			}
+		};
+	}
+
+	private void setCached(String userid, MembershipEntry entry) {
+		if (entry != null) {
+			cache.putMembership(entry);
+		} else {
+			cache.removeMembership(userid);
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package com.CssServer;
+
+/**
+ * Generates the ids of the downstream messages.
+ *
+ * <p>
+ * An id must be unique among all the messages sent with the sender id,
+ * including those sent before a restart. next() is called concurrently by
+ * every thread sending messages.
+ */
+public interface MessageIdGenerator {
+	/**
+	 * Returns a new message id.
+	 */
+	String next();
+}
@@ -0,0 +1,56 @@
+package com.CssServer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limiter for the full-packet logs.
+ *
+ * <p>
+ * Lets through at most a fixed number of packet logs per second and counts
+ * the others, so a traffic peak cannot turn the log into the bottleneck.
+ */
+class PacketLogSampler {
+	private final int maxPerSecond;
+	private final AtomicLong currentSecond = new AtomicLong();
+	private final AtomicInteger count = new AtomicInteger();
+	private final AtomicLong suppressed = new AtomicLong();
+
+	/**
+	 * Creates the sampler.
+	 *
+	 * @param maxPerSecond
+	 *            Number of packet logs allowed per second. Integer.MAX_VALUE
+	 *            lets every packet through.
+	 */
+	PacketLogSampler(int maxPerSecond) {
+		this.maxPerSecond = maxPerSecond;
+	}
+
+	/**
+	 * Returns true if the packet at hand may be logged.
+	 */
+	boolean sample() {
+		if (maxPerSecond == Integer.MAX_VALUE) {
+			return true;
+		}
+		long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+		long current = currentSecond.get();
+		if (second != current && currentSecond.compareAndSet(current, second)) {
+			count.set(0);
+		}
+		if (count.incrementAndGet() <= maxPerSecond) {
+			return true;
+		}
+		suppressed.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Returns, and resets, the number of packet logs suppressed so far.
+	 */
+	long takeSuppressedCount() {
+		return suppressed.getAndSet(0);
+	}
+}
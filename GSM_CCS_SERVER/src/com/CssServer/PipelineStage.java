@@ -0,0 +1,187 @@
+package com.CssServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single stage of the upstream pipeline.
+ *
+ * <p>
+ * Items are handed over through a bounded queue and processed by a fixed
+ * number of worker threads. When the queue is full, submit() blocks the
+ * caller until a worker catches up, so a slow stage pushes back on its
+ * producer instead of growing without limit.
+ *
+ * <p>
+ * A stage created with a Partitioner gives every worker its own queue, and
+ * sends each item to the queue of its partition. The items of a partition
+ * are then processed one at a time, in the order they were submitted.
+ *
+ * @param <T>
+ *            Type of the items processed by the stage.
+ */
+class PipelineStage<T> {
+	private static final Logger logger = CcsServer.logger;
+
+	/**
+	 * Work performed by the stage for every item.
+	 */
+	interface Handler<T> {
+		void handle(T item) throws Exception;
+	}
+
+	/**
+	 * Picks the partition of an item. Items of the same partition are
+	 * processed in order.
+	 */
+	interface Partitioner<T> {
+		int partition(T item);
+	}
+
+	private final String name;
+	// one queue shared by the workers, or one per worker if partitioned
+	private final List<BlockingQueue<T>> queues;
+	private final Handler<T> handler;
+	private final Partitioner<T> partitioner;
+	private final Thread[] workers;
+	private volatile boolean running = false;
+
+	/**
+	 * Creates a new stage. The workers are not started until start() is called.
+	 *
+	 * @param name
+	 *            Name of the stage, used for the worker threads and the logs.
+	 * @param workerCount
+	 *            Number of worker threads.
+	 * @param queueCapacity
+	 *            Maximum number of items waiting for a worker.
+	 * @param handler
+	 *            Work to perform on every item.
+	 */
+	PipelineStage(String name, int workerCount, int queueCapacity, Handler<T> handler) {
+		this(name, workerCount, queueCapacity, handler, null);
+	}
+
+	/**
+	 * Creates a new partitioned stage. The workers are not started until
+	 * start() is called.
+	 *
+	 * @param name
+	 *            Name of the stage, used for the worker threads and the logs.
+	 * @param workerCount
+	 *            Number of worker threads.
+	 * @param queueCapacity
+	 *            Maximum number of items waiting for a worker, split evenly
+	 *            between the partitions.
+	 * @param handler
+	 *            Work to perform on every item.
+	 * @param partitioner
+	 *            Picks the worker of an item, null to share one queue.
+	 */
+	PipelineStage(String name, int workerCount, int queueCapacity, Handler<T> handler,
+			Partitioner<T> partitioner) {
+		if (workerCount < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("Stage " + name
+					+ " needs at least one worker and one queue slot");
+		}
+		this.name = name;
+		this.handler = handler;
+		this.partitioner = partitioner;
+		int queueCount = partitioner != null ? workerCount : 1;
+		this.queues = new ArrayList<BlockingQueue<T>>(queueCount);
+		for (int i = 0; i < queueCount; i++) {
+			queues.add(new ArrayBlockingQueue<T>(Math.max(queueCapacity / queueCount, 1)));
+		}
+		this.workers = new Thread[workerCount];
+	}
+
+	/**
+	 * Starts the worker threads.
+	 */
+	void start() {
+		running = true;
+		for (int i = 0; i < workers.length; i++) {
+			final BlockingQueue<T> queue = queues.get(partitioner != null ? i : 0);
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work(queue);
+				}
+			}, "ccs-" + name + "-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Hands an item over to the stage.
+	 *
+	 * <p>
+	 * Blocks while the queue is full.
+	 *
+	 * @param item
+	 *            The item to process.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for room in the queue.
+	 */
+	void submit(T item) throws InterruptedException {
+		BlockingQueue<T> queue = queues.get(0);
+		if (partitioner != null) {
+			queue = queues.get((partitioner.partition(item) & Integer.MAX_VALUE) % queues.size());
+		}
+		if (!queue.offer(item)) {
+			logger.log(Level.FINE, "Stage {0} is full, applying backpressure", name);
+			queue.put(item);
+		}
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the number of items waiting for a worker.
+	 */
+	int getQueueDepth() {
+		int depth = 0;
+		for (BlockingQueue<T> queue : queues) {
+			depth += queue.size();
+		}
+		return depth;
+	}
+
+	/**
+	 * Stops the worker threads. Items still queued are discarded.
+	 */
+	void shutdown() {
+		running = false;
+		for (Thread worker : workers) {
+			if (worker != null) {
+				worker.interrupt();
+			}
+		}
+	}
+
+	private void work(BlockingQueue<T> queue) {
+		while (running) {
+			T item;
+			try {
+				item = queue.take();
+			} catch (InterruptedException e) {
+				// shutdown() interrupts the workers
+				continue;
+			}
+			try {
+				handler.handle(item);
+			} catch (InterruptedException e) {
+				// shutdown() interrupted a blocking hand-over to the next stage
+			} catch (Exception e) {
+				logger.log(Level.SEVERE, "Stage " + name + " failed to process an item", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.CssServer;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.sqlite.SQLiteConfig;
+
+/**
+ * A fixed set of read-only connections to the database.
+ *
+ * <p>
+ * In WAL mode, SQLite readers don't block the writer and aren't blocked by
+ * it, so queries on different connections run in parallel with each other
+ * and with the writes. A connection is used by one thread at a time:
+ * acquire() waits until one is free.
+ */
+class ReadConnectionPool {
+	private static final Logger logger = Database.logger;
+
+	private final BlockingQueue<Connection> idle;
+	private final List<Connection> connections = new ArrayList<Connection>();
+
+	/**
+	 * Opens the connections.
+	 *
+	 * @param url
+	 *            JDBC url of the database.
+	 * @param size
+	 *            Number of connections.
+	 */
+	ReadConnectionPool(String url, int size) throws SQLException {
+		idle = new ArrayBlockingQueue<Connection>(size);
+		SQLiteConfig config = new SQLiteConfig();
+		config.setReadOnly(true);
+		try {
+			for (int i = 0; i < size; i++) {
+				Connection connection = DriverManager.getConnection(url, config.toProperties());
+				connections.add(connection);
+				idle.add(connection);
+			}
+		} catch (SQLException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Takes a connection, waiting until one is free. It must be given back
+	 * with release().
+	 */
+	Connection acquire() throws SQLException {
+		try {
+			return idle.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a read connection");
+		}
+	}
+
+	void release(Connection connection) {
+		idle.add(connection);
+	}
+
+	/**
+	 * Closes all the connections.
+	 */
+	void close() {
+		for (Connection connection : connections) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				logger.log(Level.WARNING, "Unable to close a read connection", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.CssServer;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends again the downstream messages NACKed with a transient error.
+ *
+ * <p>
+ * The NACK error code decides whether a message is retried. Retryable
+ * messages are scheduled on a HashedTimingWheel with a jittered exponential
+ * backoff and go back through the connection pool once the delay is over.
+ * Permanent failures, and messages out of attempts, are dropped.
+ */
+class RetryScheduler {
+	private static final Logger logger = CcsServer.logger;
+	public static final int MAX_ATTEMPTS = 5;
+	public static final long BASE_DELAY_MILLIS = 1000;
+	public static final long MAX_DELAY_MILLIS = 60000;
+	public static final long TICK_MILLIS = 100;
+	public static final int WHEEL_SIZE = 1024;
+
+	private final CcsConnectionPool pool;
+	private final HashedTimingWheel wheel;
+
+	/**
+	 * Creates the scheduler. Nothing is retried until start() is called.
+	 *
+	 * @param pool
+	 *            The pool the retried messages are sent to.
+	 */
+	RetryScheduler(CcsConnectionPool pool) {
+		this.pool = pool;
+		this.wheel = new HashedTimingWheel("retry", TICK_MILLIS, WHEEL_SIZE);
+	}
+
+	void start() {
+		wheel.start();
+	}
+
+	void stop() {
+		wheel.stop();
+	}
+
+	/**
+	 * Returns true if a NACK error code is transient.
+	 *
+	 * <p>
+	 * Other errors, such as BAD_REGISTRATION, DEVICE_UNREGISTERED or
+	 * INVALID_JSON, would fail again the same way.
+	 *
+	 * @param error
+	 *            The "error" field of the NACK.
+	 */
+	static boolean isRetryable(String error) {
+		return "SERVICE_UNAVAILABLE".equals(error)
+				|| "INTERNAL_SERVER_ERROR".equals(error)
+				|| "DEVICE_MESSAGE_RATE_EXCEEDED".equals(error)
+				|| "TOPICS_MESSAGE_RATE_EXCEEDED".equals(error)
+				|| "CONNECTION_DRAINING".equals(error);
+	}
+
+	/**
+	 * Handles a NACKed message, retrying it if the error is transient.
+	 *
+	 * @param message
+	 *            The message released from the window by the NACK.
+	 * @param error
+	 *            The "error" field of the NACK.
+	 * @return true if the message will be sent again.
+	 */
+	boolean nacked(final DownstreamMessage message, String error) {
+		if (!isRetryable(error)) {
+			logger.log(Level.WARNING, "Dropping message " + message.messageId
+					+ ", permanent error " + error);
+			return false;
+		}
+		if (message.attempts >= MAX_ATTEMPTS) {
+			logger.log(Level.WARNING, "Dropping message " + message.messageId
+					+ " after " + message.attempts + " attempts, last error " + error);
+			return false;
+		}
+
+		long delay = backoff(message.attempts);
+		message.attempts++;
+		logger.log(Level.FINE, "Retrying message {0} in {1} ms, error {2}",
+				new Object[] { message.messageId, delay, error });
+		wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				resend(message);
+			}
+		}, delay);
+		return true;
+	}
+
+	/**
+	 * Returns the number of messages waiting for their retry.
+	 */
+	int getPendingCount() {
+		return wheel.getPendingCount();
+	}
+
+	/**
+	 * Returns the delay before a retry: half of the exponential delay, plus a
+	 * random part of up to the other half, so that the messages NACKed
+	 * together don't come back together.
+	 *
+	 * @param attempt
+	 *            Number of retries already made.
+	 */
+	static long backoff(int attempt) {
+		long delay = BASE_DELAY_MILLIS << Math.min(attempt, 30);
+		if (delay <= 0 || delay > MAX_DELAY_MILLIS) {
+			delay = MAX_DELAY_MILLIS;
+		}
+		long half = delay / 2;
+		return half + ThreadLocalRandom.current().nextLong(half + 1);
+	}
+
+	private void resend(DownstreamMessage message) {
+		try {
+			pool.sendDownstream(message);
+		} catch (IllegalStateException e) {
+			logger.log(Level.WARNING, "Dropping retried message " + message.messageId, e);
+			message.failed(null);
+		}
+	}
+}
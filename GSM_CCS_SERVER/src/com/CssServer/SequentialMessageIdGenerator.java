@@ -0,0 +1,124 @@
+package com.CssServer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Message ids made of the start time, a node id, a thread number and a
+ * counter.
+ *
+ * <p>
+ * Each thread gets a number the first time it asks for an id, and then
+ * counts its ids on its own, so the threads never contend. The start time
+ * of the generator, in milliseconds, makes the ids of a restarted server
+ * different from those of the previous run, as long as the clock doesn't go
+ * back; the node id makes the ids of the servers sharing a sender id
+ * different.
+ *
+ * <p>
+ * The ids are written in the URL-safe base64 alphabet: 7 characters of
+ * start time, 2 of node id, the thread number, a '.', and the counter, e.g.
+ * "BmT3xQ0AAA.Bx" for the 114th id of the first thread. They are 16
+ * characters at most for the first billion ids of the first 64 threads,
+ * against 36 for a UUID.
+ */
+public class SequentialMessageIdGenerator implements MessageIdGenerator {
+	public static final int MAX_NODE_ID = 4095;
+	private static final char[] DIGITS = ("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+			+ "0123456789-_").toCharArray();
+	private static final int TIME_DIGITS = 7;
+	private static final int NODE_DIGITS = 2;
+	// a counter has 11 digits at most
+	private static final int COUNTER_DIGITS = 11;
+
+	/**
+	 * The ids of one thread.
+	 */
+	private static class Sequence {
+		private final char[] buffer;
+		private final int prefixLength;
+		private long counter = 0;
+
+		Sequence(String prefix) {
+			prefixLength = prefix.length();
+			buffer = new char[prefixLength + COUNTER_DIGITS];
+			prefix.getChars(0, prefixLength, buffer, 0);
+		}
+
+		String next() {
+			long value = counter++;
+			int digits = 1;
+			for (long rest = value >>> 6; rest != 0; rest >>>= 6) {
+				digits++;
+			}
+			int end = prefixLength + digits;
+			for (int i = end - 1; i >= prefixLength; i--) {
+				buffer[i] = DIGITS[(int) (value & 63)];
+				value >>>= 6;
+			}
+			return new String(buffer, 0, end);
+		}
+	}
+
+	private final String prefix;
+	private final AtomicInteger threads = new AtomicInteger();
+	private final ThreadLocal<Sequence> sequences = new ThreadLocal<Sequence>() {
+		@Override
+		protected Sequence initialValue() {
+			StringBuilder threadPrefix = new StringBuilder(prefix);
+			appendDigits(threadPrefix, threads.getAndIncrement());
+			return new Sequence(threadPrefix.append('.').toString());
+		}
+	};
+
+	/**
+	 * Creates a generator, starting now.
+	 *
+	 * @param nodeId
+	 *            Id of this server among those sharing the sender id, from 0
+	 *            to MAX_NODE_ID.
+	 */
+	public SequentialMessageIdGenerator(int nodeId) {
+		this(nodeId, System.currentTimeMillis());
+	}
+
+	/**
+	 * Creates a generator with the specified start time.
+	 *
+	 * @param nodeId
+	 *            Id of this server among those sharing the sender id, from 0
+	 *            to MAX_NODE_ID.
+	 * @param startMillis
+	 *            Start time, in milliseconds since the epoch. It must be
+	 *            later than the start time of any previous generator of the
+	 *            node.
+	 */
+	public SequentialMessageIdGenerator(int nodeId, long startMillis) {
+		if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+			throw new IllegalArgumentException("Node id out of range: " + nodeId);
+		}
+		char[] fixed = new char[TIME_DIGITS + NODE_DIGITS];
+		writeDigits(fixed, 0, TIME_DIGITS, startMillis);
+		writeDigits(fixed, TIME_DIGITS, NODE_DIGITS, nodeId);
+		prefix = new String(fixed);
+	}
+
+	@Override
+	public String next() {
+		return sequences.get().next();
+	}
+
+	private static void writeDigits(char[] buffer, int start, int length, long value) {
+		for (int i = start + length - 1; i >= start; i--) {
+			buffer[i] = DIGITS[(int) (value & 63)];
+			value >>>= 6;
+		}
+	}
+
+	private static void appendDigits(StringBuilder builder, int value) {
+		int start = builder.length();
+		do {
+			builder.insert(start, DIGITS[value & 63]);
+			value >>>= 6;
+		} while (value != 0);
+	}
+}
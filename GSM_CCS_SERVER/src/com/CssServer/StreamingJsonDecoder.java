@@ -0,0 +1,270 @@
+package com.CssServer;
+
+import org.json.simple.parser.ParseException;
+
+/**
+ * Single pass decoder of the JSON carried by an upstream CCS stanza.
+ *
+ * <p>
+ * Only the top level of the object is walked. The routing fields are copied
+ * into the UpstreamMessage, the bounds of the "data" object are recorded so
+ * it can be parsed later if a handler asks for it, and every other value is
+ * skipped without being materialized.
+ */
+class StreamingJsonDecoder {
+	private final String json;
+	private int position;
+
+	private StreamingJsonDecoder(String json) {
+		this.json = json;
+	}
+
+	/**
+	 * Decodes the JSON of an upstream message into its routing fields.
+	 *
+	 * @param message
+	 *            The message, with its json set.
+	 * @throws ParseException
+	 *             If the JSON is not a well-formed object.
+	 */
+	static void decode(UpstreamMessage message) throws ParseException {
+		new StreamingJsonDecoder(message.json).decodeInto(message);
+	}
+
+	private void decodeInto(UpstreamMessage message) throws ParseException {
+		skipWhitespace();
+		expect('{');
+		skipWhitespace();
+		if (peek() == '}') {
+			return;
+		}
+		while (true) {
+			skipWhitespace();
+			String key = readString();
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+
+			if ("data".equals(key) && peek() == '{') {
+				message.dataStart = position;
+				skipValue();
+				message.dataEnd = position;
+			} else if (isRoutingField(key)) {
+				setRoutingField(message, key, readScalar());
+			} else {
+				skipValue();
+			}
+
+			skipWhitespace();
+			char next = next();
+			if (next == '}') {
+				return;
+			}
+			if (next != ',') {
+				throw unexpected(next);
+			}
+		}
+	}
+
+	private static boolean isRoutingField(String key) {
+		switch (key) {
+		case "message_type":
+		case "message_id":
+		case "from":
+		case "category":
+		case "error":
+		case "control_type":
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static void setRoutingField(UpstreamMessage message, String key, String value) {
+		switch (key) {
+		case "message_type":
+			message.messageType = value;
+			break;
+		case "message_id":
+			message.messageId = value;
+			break;
+		case "from":
+			message.from = value;
+			break;
+		case "category":
+			message.category = value;
+			break;
+		case "error":
+			message.error = value;
+			break;
+		case "control_type":
+			message.controlType = value;
+			break;
+		}
+	}
+
+	/**
+	 * Reads a string, number or literal. Returns null for a JSON null, and
+	 * skips objects and arrays, returning null as well.
+	 */
+	private String readScalar() throws ParseException {
+		char c = peek();
+		if (c == '"') {
+			return readString();
+		}
+		if (c == '{' || c == '[') {
+			skipValue();
+			return null;
+		}
+		int start = position;
+		skipLiteral();
+		String literal = json.substring(start, position);
+		return "null".equals(literal) ? null : literal;
+	}
+
+	private String readString() throws ParseException {
+		expect('"');
+		int start = position;
+		// fast path: no escape sequence, the string is a plain substring
+		while (position < json.length()) {
+			char c = json.charAt(position);
+			if (c == '"') {
+				return json.substring(start, position++);
+			}
+			if (c == '\\') {
+				break;
+			}
+			position++;
+		}
+
+		StringBuilder value = new StringBuilder(position - start + 16);
+		value.append(json, start, position);
+		while (true) {
+			char c = next();
+			if (c == '"') {
+				return value.toString();
+			}
+			if (c != '\\') {
+				value.append(c);
+				continue;
+			}
+			char escaped = next();
+			switch (escaped) {
+			case 'b':
+				value.append('\b');
+				break;
+			case 'f':
+				value.append('\f');
+				break;
+			case 'n':
+				value.append('\n');
+				break;
+			case 'r':
+				value.append('\r');
+				break;
+			case 't':
+				value.append('\t');
+				break;
+			case 'u':
+				if (position + 4 > json.length()) {
+					throw unexpected(escaped);
+				}
+				try {
+					value.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+				} catch (NumberFormatException e) {
+					throw unexpected(escaped);
+				}
+				position += 4;
+				break;
+			default:
+				// \" \\ \/
+				value.append(escaped);
+			}
+		}
+	}
+
+	/**
+	 * Skips a value of any type, including nested objects and arrays.
+	 */
+	private void skipValue() throws ParseException {
+		char c = peek();
+		if (c == '"') {
+			skipString();
+		} else if (c == '{' || c == '[') {
+			int depth = 0;
+			do {
+				c = peek();
+				if (c == '"') {
+					skipString();
+					continue;
+				}
+				position++;
+				if (c == '{' || c == '[') {
+					depth++;
+				} else if (c == '}' || c == ']') {
+					depth--;
+				}
+			} while (depth > 0);
+		} else {
+			skipLiteral();
+		}
+	}
+
+	private void skipString() throws ParseException {
+		expect('"');
+		while (true) {
+			char c = next();
+			if (c == '"') {
+				return;
+			}
+			if (c == '\\') {
+				next();
+			}
+		}
+	}
+
+	private void skipLiteral() throws ParseException {
+		int start = position;
+		while (position < json.length()) {
+			char c = json.charAt(position);
+			if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+				break;
+			}
+			position++;
+		}
+		if (position == start) {
+			throw unexpected(peek());
+		}
+	}
+
+	private void skipWhitespace() {
+		while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+			position++;
+		}
+	}
+
+	private void expect(char expected) throws ParseException {
+		char c = next();
+		if (c != expected) {
+			throw unexpected(c);
+		}
+	}
+
+	private char peek() throws ParseException {
+		if (position >= json.length()) {
+			throw new ParseException(position, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+		}
+		return json.charAt(position);
+	}
+
+	private char next() throws ParseException {
+		char c = peek();
+		position++;
+		return c;
+	}
+
+	private ParseException unexpected(char c) {
+		return new ParseException(position, ParseException.ERROR_UNEXPECTED_CHAR,
+				Character.valueOf(c));
+	}
+}
@@ -2,7 +2,19 @@ package com.CssServer;
 
 import java.util.UUID;
 
-public class UUIDGenerator {
+/**
+ * Random message ids, as UUIDs.
+ *
+ * <p>
+ * Each id draws from the shared SecureRandom, see
+ * SequentialMessageIdGenerator for a faster generator.
+ */
+public class UUIDGenerator implements MessageIdGenerator {
+	@Override
+	public String next() {
+		return generate();
+	}
+
 	/**
 	 * Creates an unique message ID.
 	 * <p>
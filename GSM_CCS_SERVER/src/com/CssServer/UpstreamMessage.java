@@ -0,0 +1,102 @@
+package com.CssServer;
+
+import java.util.Map;
+
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * An upstream CCS message travelling through the UpstreamPipeline.
+ *
+ * <p>
+ * The routing fields are filled in by the decode stage, see
+ * StreamingJsonDecoder. The "data" payload, and the complete JSON object,
+ * are only parsed when getData() or getJsonObject() is called. The dispatch
+ * stage parses the payload of a data message before its handler runs, so a
+ * malformed one is counted as a parse error instead of reaching it.
+ */
+public class UpstreamMessage {
+	UpstreamMessage(CcsConnection _source, String _json) {
+		source = _source;
+		json = _json;
+		receivedAt = System.nanoTime();
+	}
+
+	/**
+	 * Returns the "data" payload of the message.
+	 *
+	 * <p>
+	 * Parsed on the first call, unless parseData() was called before.
+	 *
+	 * @return the payload, or null if the message has none or it isn't a
+	 *         valid JSON object.
+	 */
+	public Map<String, String> getData() {
+		try {
+			parseData();
+		} catch (ParseException e) {
+			return null;
+		}
+		return data;
+	}
+
+	/**
+	 * Parses the "data" payload of the message, if not already done.
+	 *
+	 * @throws ParseException
+	 *             If the payload isn't a valid JSON object.
+	 */
+	@SuppressWarnings("unchecked")
+	void parseData() throws ParseException {
+		if (data == null && dataStart >= 0) {
+			Object parsed = new JSONParser().parse(json.substring(dataStart, dataEnd));
+			if (!(parsed instanceof Map)) {
+				throw new ParseException(dataStart, ParseException.ERROR_UNEXPECTED_TOKEN, parsed);
+			}
+			data = (Map<String, String>) parsed;
+		}
+	}
+
+	/**
+	 * Returns the complete JSON object of the message.
+	 *
+	 * <p>
+	 * Parsed on the first call. Only needed for the fields the decode stage
+	 * doesn't extract.
+	 *
+	 * @throws ParseException
+	 *             If the message isn't a valid JSON object.
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, Object> getJsonObject() throws ParseException {
+		if (jsonObject == null) {
+			Object parsed = new JSONParser().parse(json);
+			if (!(parsed instanceof Map)) {
+				throw new ParseException(0, ParseException.ERROR_UNEXPECTED_TOKEN, parsed);
+			}
+			jsonObject = (Map<String, Object>) parsed;
+		}
+		return jsonObject;
+	}
+
+	// the connection the message was received on
+	CcsConnection source;
+	// System.nanoTime() when it was handed over to the pipeline, orders the
+	// messages of a device that the decode workers may have swapped
+	final long receivedAt;
+	public String json;
+	// null for upstream data messages, "ack", "nack" or "control" otherwise
+	public String messageType;
+	public String messageId;
+	public String from;
+	// package name of the application that sent a data message
+	public String category;
+	// error code of a nack
+	public String error;
+	public String controlType;
+	// bounds of the "data" object within json, -1 if absent
+	int dataStart = -1;
+	int dataEnd = -1;
+	private Map<String, String> data;
+	private Map<String, Object> jsonObject;
+}
@@ -0,0 +1,251 @@
+package com.CssServer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.simple.parser.ParseException;
+
+/**
+ * Staged processing of the upstream CCS packets.
+ *
+ * <p>
+ * The Smack listener thread only hands the raw JSON over. From there every
+ * message travels through four stages connected by bounded queues:
+ * 1) decode   - reads the routing fields, classifies the message, drops the
+ *                duplicates of already handled data messages, frees the
+ *                window slot of an acked/nacked downstream message,
+ *                scheduling the retry of a NACKed one, and reacts to
+ *                CONNECTION_DRAINING control messages
+ * 2) dispatch - runs the data, ack and nack handlers, and records the
+ *                location updates, see LocationTracker. Each worker has
+ *                its own queue and the messages of a device always go to
+ *                the same one, so they are handled in order
+ * 3) ack      - sends the ACK of an upstream data message back to CCS
+ * 4) persist  - stores the data message once it has been handled
+ *
+ * <p>
+ * The ack stage is fed directly by the decode stage, so a slow handler or
+ * database write can never hold back the ACKs. When a queue is full its
+ * producer blocks; for the decode stage that is the Smack listener, which
+ * pushes the backpressure back onto the connection.
+ */
+class UpstreamPipeline {
+	private static final Logger logger = CcsServer.logger;
+
+	private final CcsServer server;
+	private final CcsMetrics metrics;
+	private final PipelineStage<UpstreamMessage> decodeStage;
+	private final PipelineStage<UpstreamMessage> dispatchStage;
+	private final PipelineStage<UpstreamMessage> ackStage;
+	private final PipelineStage<UpstreamMessage> persistStage;
+
+	/**
+	 * Creates the pipeline.
+	 *
+	 * @param server
+	 *            The server providing the handlers.
+	 * @param workers
+	 *            Number of worker threads of the decode and dispatch stages.
+	 * @param queueCapacity
+	 *            Capacity of the queue in front of every stage.
+	 */
+	UpstreamPipeline(CcsServer server, int workers, int queueCapacity) {
+		this.server = server;
+		this.metrics = server.metrics;
+
+		decodeStage = new PipelineStage<UpstreamMessage>("decode", workers, queueCapacity,
+				new PipelineStage.Handler<UpstreamMessage>() {
+					@Override
+					public void handle(UpstreamMessage message) throws Exception {
+						decode(message);
+					}
+				});
+		dispatchStage = new PipelineStage<UpstreamMessage>("dispatch", workers, queueCapacity,
+				new PipelineStage.Handler<UpstreamMessage>() {
+					@Override
+					public void handle(UpstreamMessage message) throws Exception {
+						dispatch(message);
+					}
+				}, new PipelineStage.Partitioner<UpstreamMessage>() {
+					@Override
+					public int partition(UpstreamMessage message) {
+						return message.from != null ? message.from.hashCode() : 0;
+					}
+				});
+		// Acks and writes are serialized by the socket and the database anyway
+		ackStage = new PipelineStage<UpstreamMessage>("ack", 1, queueCapacity,
+				new PipelineStage.Handler<UpstreamMessage>() {
+					@Override
+					public void handle(UpstreamMessage message) throws Exception {
+						ack(message);
+					}
+				});
+		persistStage = new PipelineStage<UpstreamMessage>("persist", 1, queueCapacity,
+				new PipelineStage.Handler<UpstreamMessage>() {
+					@Override
+					public void handle(UpstreamMessage message) throws Exception {
+						UpstreamPipeline.this.server.persistIncomingDataMessage(message);
+					}
+				});
+	}
+
+	/**
+	 * Starts the worker threads of all the stages.
+	 */
+	void start() {
+		persistStage.start();
+		ackStage.start();
+		dispatchStage.start();
+		decodeStage.start();
+	}
+
+	/**
+	 * Stops the worker threads of all the stages.
+	 */
+	void shutdown() {
+		decodeStage.shutdown();
+		dispatchStage.shutdown();
+		ackStage.shutdown();
+		persistStage.shutdown();
+	}
+
+	/**
+	 * Hands the JSON of an upstream packet over to the pipeline.
+	 *
+	 * <p>
+	 * Blocks while the decode stage is full.
+	 *
+	 * @param source
+	 *            The connection the packet was received on.
+	 * @param json
+	 *            The JSON content of the GCM packet extension.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for room in the decode queue.
+	 */
+	void submit(CcsConnection source, String json) throws InterruptedException {
+		decodeStage.submit(new UpstreamMessage(source, json));
+	}
+
+	/**
+	 * Returns the total number of messages waiting in the stage queues.
+	 */
+	int getQueueDepth() {
+		return decodeStage.getQueueDepth() + dispatchStage.getQueueDepth()
+				+ ackStage.getQueueDepth() + persistStage.getQueueDepth();
+	}
+
+	/**
+	 * Returns the number of messages waiting in each stage queue, in the
+	 * order of the stages.
+	 */
+	Map<String, Integer> getQueueDepths() {
+		Map<String, Integer> depths = new LinkedHashMap<String, Integer>();
+		depths.put(decodeStage.getName(), decodeStage.getQueueDepth());
+		depths.put(dispatchStage.getName(), dispatchStage.getQueueDepth());
+		depths.put(ackStage.getName(), ackStage.getQueueDepth());
+		depths.put(persistStage.getName(), persistStage.getQueueDepth());
+		return depths;
+	}
+
+	private void decode(UpstreamMessage message) throws InterruptedException {
+		long start = System.nanoTime();
+		try {
+			StreamingJsonDecoder.decode(message);
+		} catch (ParseException e) {
+			metrics.parseErrors.increment();
+			logger.log(Level.SEVERE, "Error parsing JSON " + message.json, e);
+			return;
+		}
+		metrics.parseTime.recordSince(start);
+		if (message.messageId == null && !"control".equals(message.messageType)) {
+			logger.log(Level.SEVERE, "Missing message_id in " + message.json);
+			return;
+		}
+
+		if (message.messageType == null) {
+			// Normal upstream data message, acknowledge it independently of the handler
+			ackStage.submit(message);
+			metrics.upstreamMessages.increment();
+			if (!server.deduplicationCache.markSeen(message.messageId)) {
+				metrics.duplicateMessages.increment();
+				// CCS lost our ACK and redelivered, the message was already handled
+				logger.log(Level.FINE, "Duplicate upstream message {0}", message.messageId);
+				return;
+			}
+		} else if ("ack".equals(message.messageType) || "nack".equals(message.messageType)) {
+			if ("ack".equals(message.messageType)) {
+				metrics.acksReceived.increment();
+			} else {
+				metrics.nacked(message.error);
+			}
+			// Open the window right away, the handlers may be lagging behind
+			DownstreamMessage released = message.source.getWindow().release(message.messageId);
+			if (released == null) {
+				logger.log(Level.WARNING, "Received ack/nack for unknown message " + message.messageId);
+			} else {
+				metrics.ackRoundTripTime.recordSince(released.sentAt);
+				if ("ack".equals(message.messageType)) {
+					released.delivered();
+				} else if (!server.retryScheduler.nacked(released, message.error)) {
+					released.failed(message.error);
+				}
+			}
+			message.source.retireIfDrained();
+		} else if ("control".equals(message.messageType)) {
+			if ("CONNECTION_DRAINING".equals(message.controlType)) {
+				metrics.connectionDrainings.increment();
+				server.connectionDraining(message.source);
+				return;
+			}
+		}
+		dispatchStage.submit(message);
+	}
+
+	private void dispatch(UpstreamMessage message) throws InterruptedException {
+		long start = System.nanoTime();
+		try {
+			handle(message);
+		} finally {
+			metrics.handlerTime.recordSince(start);
+		}
+	}
+
+	private void handle(UpstreamMessage message) throws InterruptedException {
+		if (message.messageType == null) {
+			try {
+				message.parseData();
+			} catch (ParseException e) {
+				// already ACKed, CCS would only redeliver it
+				metrics.parseErrors.increment();
+				logger.log(Level.SEVERE, "Error parsing the data of " + message.json, e);
+				return;
+			}
+			if (LocationTracker.isLocationUpdate(message.getData())) {
+				if (!server.locationTracker.update(message.from, message.getData(),
+						message.receivedAt)) {
+					logger.log(Level.WARNING, "Invalid location update " + message.json);
+				}
+				return;
+			}
+			server.handleIncomingDataMessage(message);
+			persistStage.submit(message);
+		} else if ("ack".equals(message.messageType)) {
+			server.handleAckReceipt(message);
+		} else if ("nack".equals(message.messageType)) {
+			server.handleNackReceipt(message);
+		} else if ("control".equals(message.messageType)) {
+			logger.log(Level.INFO, "Ignoring control message " + message.json);
+		} else {
+			logger.log(Level.WARNING, "Unrecognized message type ({0})",
+					message.messageType);
+		}
+	}
+
+	private void ack(UpstreamMessage message) {
+		String ack = CcsServer.createJsonAck(message.from, message.messageId);
+		// CCS expects the ACK on the connection the message came from
+		message.source.send(ack);
+	}
+}